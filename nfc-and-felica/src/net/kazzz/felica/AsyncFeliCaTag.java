@@ -0,0 +1,302 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import static net.kazzz.util.ThreadUtil.daemonThreadFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.kazzz.felica.command.ReadResponse;
+import net.kazzz.felica.command.WriteResponse;
+import net.kazzz.felica.command.WriteResult;
+import net.kazzz.felica.lib.FeliCaLib.CommandPacket;
+import net.kazzz.felica.lib.FeliCaLib.CommandResponse;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+
+/**
+ * FeliCaTagのコマンドを非同期に実行するクラスを提供します
+ *
+ * <pre>
+ * タグ毎に1本のコマンドキューを持ち、投入された順にコマンドを直列に実行します。
+ * 結果はFutureと IFeliCaCallbackで受け取れます。コールバックはコマンドキューとは別のスレッド
+ * (又は指定したExecutor)で呼ばれるため、応答の解析中に次のコマンドの送受信が進みます。
+ *
+ * 期限(timeoutMillis)を過ぎたコマンドは失敗として完了します。送受信中のコマンドを
+ * 中断することはできないため、その結果は破棄されます。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class AsyncFeliCaTag {
+    //期限監視用のスケジューラ (全インスタンスで共有します)
+    private static final ScheduledExecutorService deadlineTimer =
+        Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("FeliCa-deadline"));
+
+    protected final FeliCaTag tag;
+    protected final ExecutorService commandQueue;
+    protected final Executor callbackExecutor;
+    /**
+     * コンストラクタ
+     *
+     * @param tag コマンドを発行するFeliCaTagをセット
+     */
+    public AsyncFeliCaTag(FeliCaTag tag) {
+        this(tag, null);
+    }
+    /**
+     * コンストラクタ
+     *
+     * @param tag コマンドを発行するFeliCaTagをセット
+     * @param callbackExecutor コールバックを実行するExecutorをセット (nullの場合は専用スレッドで実行します)
+     */
+    public AsyncFeliCaTag(FeliCaTag tag, Executor callbackExecutor) {
+        this.tag = tag;
+        this.commandQueue = Executors.newSingleThreadExecutor(daemonThreadFactory("FeliCa-command"));
+        this.callbackExecutor = callbackExecutor != null
+            ? callbackExecutor
+            : Executors.newSingleThreadExecutor(daemonThreadFactory("FeliCa-callback"));
+    }
+    /**
+     * 対象のFeliCaTagを取得します
+     * @return FeliCaTag 対象のタグが戻ります
+     */
+    public FeliCaTag getTag() {
+        return this.tag;
+    }
+    /**
+     * 非同期にポーリングします
+     *
+     * @param systemCode 対象のシステムコードをセット
+     * @param callback 完了通知を受け取るコールバックをセット (不要な場合はnull)
+     * @param timeoutMillis 期限(ミリ秒)をセット (0以下の場合は期限なし)
+     * @return Future<byte[]> ポーリング結果のFutureが戻ります
+     */
+    public Future<byte[]> polling(final int systemCode
+            , IFeliCaCallback<byte[]> callback, long timeoutMillis) {
+        return this.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return tag.polling(systemCode);
+            }
+        }, callback, timeoutMillis);
+    }
+    /**
+     * 非同期に認証不要領域のデータを読み込みます
+     *
+     * @param serviceCode サービスコードをセット
+     * @param addr 読み込むブロックのアドレス (0オリジン)をセット
+     * @param callback 完了通知を受け取るコールバックをセット (不要な場合はnull)
+     * @param timeoutMillis 期限(ミリ秒)をセット (0以下の場合は期限なし)
+     * @return Future<ReadResponse> 読み込み結果のFutureが戻ります
+     */
+    public Future<ReadResponse> readWithoutEncryption(final ServiceCode serviceCode, final byte addr
+            , IFeliCaCallback<ReadResponse> callback, long timeoutMillis) {
+        return this.submit(new Callable<ReadResponse>() {
+            @Override
+            public ReadResponse call() throws Exception {
+                return tag.readWithoutEncryption(serviceCode, addr);
+            }
+        }, callback, timeoutMillis);
+    }
+    /**
+     * 非同期に認証不要領域の連続したブロックをまとめて読み込みます
+     *
+     * @param serviceCode サービスコードをセット
+     * @param addr 読み込む先頭ブロックのアドレス (0オリジン)をセット
+     * @param count 読み込むブロック数をセット
+     * @param callback 完了通知を受け取るコールバックをセット (不要な場合はnull)
+     * @param timeoutMillis 期限(ミリ秒)をセット (0以下の場合は期限なし)
+     * @return Future<byte[]> 読み込んだブロックを連結したデータのFutureが戻ります
+     */
+    public Future<byte[]> readWithoutEncryption(final ServiceCode serviceCode, final int addr
+            , final int count, IFeliCaCallback<byte[]> callback, long timeoutMillis) {
+        return this.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return tag.readWithoutEncryption(serviceCode, addr, count);
+            }
+        }, callback, timeoutMillis);
+    }
+    /**
+     * 非同期に認証不要領域へデータを書き込みます
+     *
+     * @param serviceCode サービスコードをセット
+     * @param addr データをセットするブロックのアドレス(0オリジン)をセット
+     * @param buff 書きこむデータをセット (16バイト)
+     * @param callback 完了通知を受け取るコールバックをセット (不要な場合はnull)
+     * @param timeoutMillis 期限(ミリ秒)をセット (0以下の場合は期限なし)
+     * @return Future<WriteResponse> 書き込み結果のFutureが戻ります
+     */
+    public Future<WriteResponse> writeWithoutEncryption(final ServiceCode serviceCode, final byte addr
+            , final byte[] buff, IFeliCaCallback<WriteResponse> callback, long timeoutMillis) {
+        return this.submit(new Callable<WriteResponse>() {
+            @Override
+            public WriteResponse call() throws Exception {
+                return tag.writeWithoutEncryption(serviceCode, addr, buff);
+            }
+        }, callback, timeoutMillis);
+    }
+    /**
+     * 非同期に認証不要領域の連続したブロックへデータをまとめて書き込みます
+     *
+     * @param serviceCode サービスコードをセット
+     * @param addr 書き込む先頭ブロックのアドレス(0オリジン)をセット
+     * @param data 書きこむデータをセット
+     * @param callback 完了通知を受け取るコールバックをセット (不要な場合はnull)
+     * @param timeoutMillis 期限(ミリ秒)をセット (0以下の場合は期限なし)
+     * @return Future<WriteResult> ブロック毎の書き込み結果のFutureが戻ります
+     */
+    public Future<WriteResult> writeWithoutEncryption(final ServiceCode serviceCode, final int addr
+            , final byte[] data, IFeliCaCallback<WriteResult> callback, long timeoutMillis) {
+        return this.submit(new Callable<WriteResult>() {
+            @Override
+            public WriteResult call() throws Exception {
+                return tag.writeWithoutEncryption(serviceCode, addr, data);
+            }
+        }, callback, timeoutMillis);
+    }
+    /**
+     * 非同期に任意のコマンドを実行します
+     *
+     * @param commandPacket 実行するコマンドパケットをセット
+     * @param callback 完了通知を受け取るコールバックをセット (不要な場合はnull)
+     * @param timeoutMillis 期限(ミリ秒)をセット (0以下の場合は期限なし)
+     * @return Future<CommandResponse> 実行結果のFutureが戻ります
+     */
+    public Future<CommandResponse> execute(final CommandPacket commandPacket
+            , IFeliCaCallback<CommandResponse> callback, long timeoutMillis) {
+        return this.submit(new Callable<CommandResponse>() {
+            @Override
+            public CommandResponse call() throws Exception {
+                return tag.execute(commandPacket);
+            }
+        }, callback, timeoutMillis);
+    }
+    /**
+     * コマンドキューに処理を投入します
+     *
+     * @param command タグに対して実行する処理をセット
+     * @param callback 完了通知を受け取るコールバックをセット (不要な場合はnull)
+     * @param timeoutMillis 期限(ミリ秒)をセット (0以下の場合は期限なし)
+     * @return Future<T> 実行結果のFutureが戻ります
+     */
+    public <T> Future<T> submit(Callable<T> command
+            , IFeliCaCallback<T> callback, long timeoutMillis) {
+        final CommandTask<T> task = new CommandTask<T>(command, callback
+                , timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0);
+        if ( timeoutMillis > 0 ) {
+            task.expiry = deadlineTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    task.expire();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        this.commandQueue.execute(task);
+        return task;
+    }
+    /**
+     * 待機中のコマンドを破棄し、タグを閉じます
+     */
+    public void shutdown() {
+        for ( Runnable r : this.commandQueue.shutdownNow() ) {
+            ((Future<?>) r).cancel(false);
+        }
+        if ( this.callbackExecutor instanceof ExecutorService ) {
+            ((ExecutorService) this.callbackExecutor).shutdown();
+        }
+        this.tag.close();
+    }
+
+    /**
+     * 期限とコールバックを持つコマンドタスクを提供します
+     */
+    class CommandTask<T> extends FutureTask<T> {
+        final IFeliCaCallback<T> callback;
+        final long deadline; // System.nanoTime()基準 (0は期限なし)
+        volatile ScheduledFuture<?> expiry;
+
+        CommandTask(Callable<T> command, IFeliCaCallback<T> callback, long deadline) {
+            super(command);
+            this.callback = callback;
+            this.deadline = deadline;
+        }
+        /* (non-Javadoc)
+         * @see java.util.concurrent.FutureTask#run()
+         */
+        @Override
+        public void run() {
+            //キューで待機している間に期限を過ぎた場合は送信しません
+            if ( this.deadline != 0 && System.nanoTime() - this.deadline >= 0 ) {
+                this.expire();
+                return;
+            }
+            super.run();
+        }
+        /**
+         * 期限切れとして完了させます
+         */
+        void expire() {
+            if ( !this.isDone() ) {
+                this.setException(new FeliCaException("command deadline exceeded"));
+            }
+        }
+        /* (non-Javadoc)
+         * @see java.util.concurrent.FutureTask#done()
+         */
+        @Override
+        protected void done() {
+            ScheduledFuture<?> e = this.expiry;
+            if ( e != null ) e.cancel(false);
+            if ( this.callback == null ) return;
+            try {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                //コールバック用のExecutorが停止済みの場合は通知しません
+            }
+        }
+        /**
+         * 結果をコールバックへ通知します
+         */
+        void dispatch() {
+            T result;
+            try {
+                result = this.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                this.callback.onFailure(cause instanceof FeliCaException
+                        ? (FeliCaException) cause : new FeliCaException(e));
+                return;
+            } catch (Exception e) { // CancellationException, InterruptedException
+                this.callback.onFailure(new FeliCaException("command cancelled"));
+                return;
+            }
+            this.callback.onSuccess(result);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.kazzz.felica.lib.FeliCaLib.AreaCode;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+
+/**
+ * Search Service Codeで列挙したエリアとサービスの階層を索引として保持するクラスを提供します
+ *
+ * <pre>
+ * サービスコードは番号と属性の順(=コードの数値順)に並べた配列で保持し、エリアは開始コード順に
+ * 親エリアの添字と共に保持します。エリア配下のサービスは二分探索による範囲の切り出しで求めるため、
+ * サービス配列を毎回走査することはありません。
+ *
+ * 属性による絞り込みには、サービスコードの下位6ビット(アクセス属性)を集合として表した
+ * 64ビットのマスク(ATTR_*)を使用します。マスクは論理積で組み合わせられます。
+ *
+ *  // Suicaのエリア配下の、認証不要なサイクリックサービス
+ *  int[] codes = tree.getServices(0x0800, ATTR_CYCLIC &amp; ATTR_NO_AUTH);
+ *
+ * getBytes()/parse()でコンパクトなバイト列へ変換でき、カードの品種毎にキャッシュできます。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaAreaTree implements IFeliCaByteData {
+    /** 全てのアクセス属性 */
+    public static final long ATTR_ANY = -1L;
+    /** ランダムサービス */
+    public static final long ATTR_RANDOM = 0x0fL << 0x08;
+    /** サイクリックサービス */
+    public static final long ATTR_CYCLIC = 0x0fL << 0x0c;
+    /** パースサービス */
+    public static final long ATTR_PURSE = 0xffL << 0x10;
+    /** 認証が必要なサービス (ServiceCode#encryptNeeded) */
+    public static final long ATTR_AUTH;
+    /** 認証が不要なサービス */
+    public static final long ATTR_NO_AUTH;
+    /** 書込み可能なサービス (ServiceCode#isWritable) */
+    public static final long ATTR_WRITABLE;
+
+    static {
+        long auth = 0, writable = 0;
+        for ( int attr = 0; attr < 64; attr++ ) {
+            ServiceCode sc = new ServiceCode(attr);
+            if ( sc.encryptNeeded() ) auth |= 1L << attr;
+            if ( sc.isWritable() ) writable |= 1L << attr;
+        }
+        ATTR_AUTH = auth;
+        ATTR_NO_AUTH = ~auth;
+        ATTR_WRITABLE = writable;
+    }
+
+    protected final int[] areaCodes;   // 開始コード順
+    protected final int[] areaEnds;
+    protected final int[] areaParents; // 親エリアの添字 (無い場合は-1)
+    protected final int[] services;    // コードの数値順
+    /**
+     * コンストラクタ
+     *
+     * @param areas エリアをセット (順不同)
+     * @param services サービスをセット (順不同)
+     */
+    public FeliCaAreaTree(AreaCode[] areas, ServiceCode[] services) {
+        long[] sorted = new long[areas.length];
+        for ( int i = 0; i < areas.length; i++ ) {
+            // 開始コードの昇順、終了コードの降順 (外側のエリアが先)
+            sorted[i] = (long) start(areas[i].getCode()) << 32
+                | (long) (0xffff - areas[i].getEndServiceCode()) << 16 | areas[i].getCode();
+        }
+        Arrays.sort(sorted);
+        this.areaCodes = new int[sorted.length];
+        this.areaEnds = new int[sorted.length];
+        this.areaParents = new int[sorted.length];
+        int[] stack = new int[sorted.length];
+        int depth = 0;
+        for ( int i = 0; i < sorted.length; i++ ) {
+            this.areaCodes[i] = (int) sorted[i] & 0xffff;
+            this.areaEnds[i] = 0xffff - ((int) (sorted[i] >>> 16) & 0xffff);
+            while ( depth > 0 && this.areaEnds[stack[depth - 1]] < this.areaEnds[i] ) {
+                depth--;
+            }
+            this.areaParents[i] = depth > 0 ? stack[depth - 1] : -1;
+            stack[depth++] = i;
+        }
+        this.services = new int[services.length];
+        for ( int i = 0; i < services.length; i++ ) {
+            this.services[i] = services[i].getCode();
+        }
+        Arrays.sort(this.services);
+    }
+    /**
+     * 反復子が返す全てのノードから索引を作成します
+     *
+     * @param it 列挙を開始していない反復子をセット
+     * @return FeliCaAreaTree 索引が戻ります
+     * @throws FeliCaException
+     */
+    public static FeliCaAreaTree build(FeliCaServiceIterator it) throws FeliCaException {
+        List<AreaCode> areas = new ArrayList<AreaCode>();
+        List<ServiceCode> services = new ArrayList<ServiceCode>();
+        while ( it.hasNext() ) {
+            IFeliCaByteData node = it.next();
+            if ( node instanceof AreaCode ) {
+                areas.add((AreaCode) node);
+            } else {
+                services.add((ServiceCode) node);
+            }
+        }
+        return new FeliCaAreaTree(areas.toArray(new AreaCode[areas.size()])
+                , services.toArray(new ServiceCode[services.size()]));
+    }
+    /**
+     * getBytes()で変換したバイト列から索引を復元します
+     *
+     * @param buffer バイト列を保持したバッファをセット (位置は索引の直後へ進みます)
+     * @return FeliCaAreaTree 索引が戻ります
+     */
+    public static FeliCaAreaTree parse(ByteBuffer buffer) {
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int areaCount = b.getShort() & 0xffff;
+        int serviceCount = b.getShort() & 0xffff;
+        AreaCode[] areas = new AreaCode[areaCount];
+        for ( int i = 0; i < areaCount; i++ ) {
+            areas[i] = new AreaCode(b.getShort() & 0xffff, b.getShort() & 0xffff);
+        }
+        ServiceCode[] services = new ServiceCode[serviceCount];
+        for ( int i = 0; i < serviceCount; i++ ) {
+            services[i] = new ServiceCode(b.getShort() & 0xffff);
+        }
+        buffer.position(b.position());
+        return new FeliCaAreaTree(areas, services);
+    }
+    /**
+     * エリア数を取得します
+     * @return int エリア数が戻ります
+     */
+    public int getAreaCount() {
+        return this.areaCodes.length;
+    }
+    /**
+     * エリアを取得します
+     * @param index エリアの添字 (開始コード順)をセット
+     * @return AreaCode エリアが戻ります
+     */
+    public AreaCode getArea(int index) {
+        return new AreaCode(this.areaCodes[index], this.areaEnds[index]);
+    }
+    /**
+     * 親エリアの添字を取得します
+     * @param index エリアの添字をセット
+     * @return int 親エリアの添字が戻ります (最上位の場合は-1)
+     */
+    public int getParent(int index) {
+        return this.areaParents[index];
+    }
+    /**
+     * エリアコードからエリアの添字を取得します
+     * @param areaCode エリアコードをセット
+     * @return int エリアの添字が戻ります (無い場合は-1)
+     */
+    public int indexOfArea(int areaCode) {
+        int i = this.lastAreaStartingAt(start(areaCode));
+        for ( ; i >= 0 && start(this.areaCodes[i]) == start(areaCode); i-- ) {
+            if ( this.areaCodes[i] == areaCode ) return i;
+        }
+        return -1;
+    }
+    /**
+     * サービスを含む最も内側のエリアの添字を取得します
+     * @param serviceCode サービスコードをセット
+     * @return int エリアの添字が戻ります (無い場合は-1)
+     */
+    public int findArea(int serviceCode) {
+        int i = this.lastAreaStartingAt(serviceCode);
+        while ( i >= 0 && this.areaEnds[i] < serviceCode ) {
+            i = this.areaParents[i];
+        }
+        return i;
+    }
+    /**
+     * サービス数を取得します
+     * @return int サービス数が戻ります
+     */
+    public int getServiceCount() {
+        return this.services.length;
+    }
+    /**
+     * サービスコードを取得します
+     * @param index サービスの添字 (コードの数値順)をセット
+     * @return int サービスコードが戻ります
+     */
+    public int getServiceCode(int index) {
+        return this.services[index];
+    }
+    /**
+     * サービスが含まれるかを検査します
+     * @param serviceCode サービスコードをセット
+     * @return boolean 含まれる場合trueが戻ります
+     */
+    public boolean containsService(int serviceCode) {
+        return Arrays.binarySearch(this.services, serviceCode) >= 0;
+    }
+    /**
+     * 属性が一致する全てのサービスを取得します
+     * @param attributes アクセス属性のマスク(ATTR_*)をセット
+     * @return int[] サービスコードの配列 (数値順)が戻ります
+     */
+    public int[] getServices(long attributes) {
+        return this.filter(0, this.services.length, attributes);
+    }
+    /**
+     * エリア配下(子孫のエリアを含みます)の、属性が一致するサービスを取得します
+     * @param areaCode エリアコードをセット
+     * @param attributes アクセス属性のマスク(ATTR_*)をセット
+     * @return int[] サービスコードの配列 (数値順)が戻ります (エリアが無い場合は空)
+     */
+    public int[] getServices(int areaCode, long attributes) {
+        int area = this.indexOfArea(areaCode);
+        if ( area < 0 ) return new int[0];
+        int from = lowerBound(this.services, start(this.areaCodes[area]));
+        int to = lowerBound(this.services, this.areaEnds[area] + 1);
+        return this.filter(from, to, attributes);
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.IFeliCaByteData#getBytes()
+     */
+    @Override
+    public byte[] getBytes() {
+        ByteBuffer b = ByteBuffer.allocate(this.encodedLength());
+        this.writeTo(b);
+        return b.array();
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+     */
+    @Override
+    public int encodedLength() {
+        return 4 + this.areaCodes.length * 4 + this.services.length * 2;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+     */
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN); // カードと同じリトルエンディアン
+        buffer.putShort((short) this.areaCodes.length);
+        buffer.putShort((short) this.services.length);
+        for ( int i = 0; i < this.areaCodes.length; i++ ) {
+            buffer.putShort((short) this.areaCodes[i]);
+            buffer.putShort((short) this.areaEnds[i]);
+        }
+        for ( int code : this.services ) {
+            buffer.putShort((short) code);
+        }
+        buffer.order(order);
+    }
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < this.areaCodes.length; i++ ) {
+            int depth = 0;
+            for ( int p = this.areaParents[i]; p >= 0; p = this.areaParents[p] ) depth++;
+            for ( int j = 0; j < depth; j++ ) sb.append("  ");
+            sb.append(String.format("%04x - %04x : %d services\n", this.areaCodes[i], this.areaEnds[i]
+                    , this.getServices(this.areaCodes[i], ATTR_ANY).length));
+        }
+        return sb.toString();
+    }
+    /**
+     * 開始コードがcode以下の最後のエリアの添字を取得します
+     */
+    private int lastAreaStartingAt(int code) {
+        int low = 0, high = this.areaCodes.length - 1, result = -1;
+        while ( low <= high ) {
+            int mid = (low + high) >>> 1;
+            if ( start(this.areaCodes[mid]) <= code ) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+    private int[] filter(int from, int to, long attributes) {
+        int[] result = new int[to - from];
+        int n = 0;
+        for ( int i = from; i < to; i++ ) {
+            if ( (attributes >>> (this.services[i] & 0x3f) & 1) != 0 ) {
+                result[n++] = this.services[i];
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+    private static int lowerBound(int[] a, int key) {
+        int low = 0, high = a.length;
+        while ( low < high ) {
+            int mid = (low + high) >>> 1;
+            if ( a[mid] < key ) low = mid + 1; else high = mid;
+        }
+        return low;
+    }
+    /**
+     * エリアの開始コード (属性を除いたエリア番号の先頭)を取得します
+     */
+    private static int start(int areaCode) {
+        return areaCode & 0xffc0;
+    }
+}
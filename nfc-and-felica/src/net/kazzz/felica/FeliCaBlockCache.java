@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+
+/**
+ * 読み込んだブロックを(IDm, サービスコード, ブロック番号)毎に保持するLRUキャッシュを提供します
+ *
+ * <pre>
+ * 1回のタッチの間に同じブロックを繰り返し読む場合(残高の後に履歴を読む等)、2回目以降は通信せずに
+ * キャッシュから返します。保持するブロックデータの合計がバイト数の上限を超えた場合は、
+ * 最も長く参照されていないブロックから破棄します。
+ *
+ * FeliCaTag#setBlockCache()で設定すると、読み込みはキャッシュを経由し、書き込みは対象サービスの
+ * キャッシュを無効にします(サイクリックサービスは書き込みで全レコードの位置が変わるため、
+ * ブロック単位ではなくサービス単位で無効にします)。カードが離れた場合はinvalidate(IDm)で破棄します。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaBlockCache {
+    public static final int BLOCK_SIZE = 16;
+    /** 既定のバイト数の上限 */
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    /**
+     * キャッシュのキーを提供します
+     */
+    static final class Key {
+        final long idm;
+        final int service; // サービスコード << 16 | ブロック番号
+        Key(long idm, int serviceCode, int block) {
+            this.idm = idm;
+            this.service = serviceCode << 16 | block;
+        }
+        int getServiceCode() {
+            return this.service >>> 16;
+        }
+        @Override
+        public int hashCode() {
+            return (int) (this.idm ^ (this.idm >>> 32)) * 31 + this.service;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if ( !(o instanceof Key) ) return false;
+            Key k = (Key) o;
+            return this.idm == k.idm && this.service == k.service;
+        }
+    }
+
+    protected final int capacity;
+    protected final LinkedHashMap<Key, byte[]> blocks =
+        new LinkedHashMap<Key, byte[]>(64, 0.75f, true); // 参照順
+    protected int hits;
+    protected int misses;
+    /**
+     * コンストラクタ
+     */
+    public FeliCaBlockCache() {
+        this(DEFAULT_CAPACITY);
+    }
+    /**
+     * コンストラクタ
+     *
+     * @param capacity 保持するブロックデータのバイト数の上限をセット
+     */
+    public FeliCaBlockCache(int capacity) {
+        if ( capacity < BLOCK_SIZE ) {
+            throw new IllegalArgumentException("capacity : " + capacity);
+        }
+        this.capacity = capacity;
+    }
+    /**
+     * 連続したブロックをキャッシュから取得します
+     *
+     * @param idm カードのIDmをセット
+     * @param serviceCode サービスコードをセット
+     * @param addr 先頭ブロックのアドレスをセット
+     * @param dest 取得したデータをセットする配列をセット
+     * @param offset dest中の位置をセット
+     * @param count ブロック数をセット
+     * @return boolean[] ブロック毎に、キャッシュにあった場合trueが戻ります
+     */
+    public synchronized boolean[] get(IDm idm, ServiceCode serviceCode, int addr
+            , byte[] dest, int offset, int count) {
+        boolean[] found = new boolean[count];
+        long id = idm.longValue();
+        int code = serviceCode.getCode();
+        for ( int i = 0; i < count; i++ ) {
+            byte[] b = this.blocks.get(new Key(id, code, addr + i));
+            if ( b != null ) {
+                System.arraycopy(b, 0, dest, offset + i * BLOCK_SIZE, BLOCK_SIZE);
+                found[i] = true;
+                this.hits++;
+            } else {
+                this.misses++;
+            }
+        }
+        return found;
+    }
+    /**
+     * 連続したブロックをキャッシュへ格納します
+     *
+     * @param idm カードのIDmをセット
+     * @param serviceCode サービスコードをセット
+     * @param addr 先頭ブロックのアドレスをセット
+     * @param src ブロックデータを保持した配列をセット
+     * @param offset src中の位置をセット
+     * @param count ブロック数をセット
+     */
+    public synchronized void put(IDm idm, ServiceCode serviceCode, int addr
+            , byte[] src, int offset, int count) {
+        long id = idm.longValue();
+        int code = serviceCode.getCode();
+        for ( int i = 0; i < count; i++ ) {
+            byte[] b = new byte[BLOCK_SIZE];
+            System.arraycopy(src, offset + i * BLOCK_SIZE, b, 0, BLOCK_SIZE);
+            this.blocks.put(new Key(id, code, addr + i), b);
+        }
+        //上限を超えた分を参照の古い順に破棄します
+        Iterator<Key> it = this.blocks.keySet().iterator();
+        while ( this.blocks.size() * BLOCK_SIZE > this.capacity && it.hasNext() ) {
+            it.next();
+            it.remove();
+        }
+    }
+    /**
+     * サービスのブロックを全て破棄します
+     *
+     * @param idm カードのIDmをセット
+     * @param serviceCode サービスコードをセット
+     */
+    public synchronized void invalidate(IDm idm, ServiceCode serviceCode) {
+        long id = idm.longValue();
+        int code = serviceCode.getCode();
+        for ( Iterator<Key> it = this.blocks.keySet().iterator(); it.hasNext(); ) {
+            Key k = it.next();
+            if ( k.idm == id && k.getServiceCode() == code ) it.remove();
+        }
+    }
+    /**
+     * カードのブロックを全て破棄します
+     *
+     * @param idm カードのIDmをセット
+     */
+    public synchronized void invalidate(IDm idm) {
+        long id = idm.longValue();
+        for ( Iterator<Key> it = this.blocks.keySet().iterator(); it.hasNext(); ) {
+            if ( it.next().idm == id ) it.remove();
+        }
+    }
+    /**
+     * 全てのブロックを破棄します
+     */
+    public synchronized void clear() {
+        this.blocks.clear();
+    }
+    /**
+     * 保持しているブロックデータのバイト数を取得します
+     * @return int バイト数が戻ります
+     */
+    public synchronized int size() {
+        return this.blocks.size() * BLOCK_SIZE;
+    }
+    /**
+     * キャッシュから返したブロック数を取得します
+     * @return int ブロック数が戻ります
+     */
+    public synchronized int getHitCount() {
+        return this.hits;
+    }
+    /**
+     * キャッシュに無かったブロック数を取得します
+     * @return int ブロック数が戻ります
+     */
+    public synchronized int getMissCount() {
+        return this.misses;
+    }
+}
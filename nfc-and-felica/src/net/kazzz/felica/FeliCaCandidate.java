@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_POLLING;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_POLLING;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.kazzz.felica.lib.FeliCaLib;
+import net.kazzz.felica.lib.FeliCaLib.CommandPacket;
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.PMm;
+import net.kazzz.felica.lib.IFeliCaTransport;
+import net.kazzz.felica.lib.Util;
+import net.kazzz.nfc.NfcException;
+
+/**
+ * 複数のタイムスロットでPollingした際に応答したカード(候補)を提供します
+ *
+ * <pre>
+ * タイムスロット数を2以上にしてPollingすると、フィールド内の各カードは乱数で選んだスロットで応答します。
+ * poll()は1回のPollingで受信した全ての応答フレームを解析し、カード毎の候補として返します。
+ * 候補はFeliCaTag#select()等で個別のタグとして扱えるため、カード毎にPollingし直す必要はありません。
+ *
+ * 注意: AndroidのNfcF#transceive()は最初の1枚の応答しか返さないため、実機で複数の候補が
+ * 得られるのは、全ての応答フレームを連結して返すリーダ(トランスポート)の場合に限られます。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaCandidate {
+    /** システムコードが応答に含まれていないことを示す値 */
+    public static final int SYSTEMCODE_UNKNOWN = -1;
+
+    private static final int POLLING_RESPONSE_LENGTH = 18; // 長さ + 応答コード + IDm + PMm
+
+    protected final IDm idm;
+    protected final PMm pmm;
+    protected final int systemCode;
+    /**
+     * コンストラクタ
+     *
+     * @param idm IDmをセット
+     * @param pmm PMmをセット
+     * @param systemCode システムコードをセット (不明な場合はSYSTEMCODE_UNKNOWN)
+     */
+    public FeliCaCandidate(IDm idm, PMm pmm, int systemCode) {
+        this.idm = idm;
+        this.pmm = pmm;
+        this.systemCode = systemCode;
+    }
+    /**
+     * IDmを取得します
+     * @return IDm IDmが戻ります
+     */
+    public IDm getIDm() {
+        return this.idm;
+    }
+    /**
+     * PMmを取得します
+     * @return PMm PMmが戻ります
+     */
+    public PMm getPMm() {
+        return this.pmm;
+    }
+    /**
+     * システムコードを取得します
+     * @return int システムコードが戻ります (不明な場合はSYSTEMCODE_UNKNOWN)
+     */
+    public int getSystemCode() {
+        return this.systemCode;
+    }
+    /**
+     * 複数のタイムスロットでPollingし、応答した全てのカードを取得します
+     *
+     * <pre>
+     * Pollingは衝突や応答無しが前提となるため、再送ハンドラを経由せず1回だけ送信します。
+     * どのカードも応答しなかった場合は空のリストが戻ります。
+     * </pre>
+     *
+     * @param transport トランスポートをセット
+     * @param systemCode 対象のシステムコードをセット
+     * @param slots タイムスロット数 (1, 2, 4, 8, 16)をセット
+     * @return List<FeliCaCandidate> 応答したカードの一覧が戻ります
+     * @throws FeliCaException
+     */
+    public static List<FeliCaCandidate> poll(IFeliCaTransport transport, int systemCode, int slots)
+            throws FeliCaException {
+        if ( slots != 1 && slots != 2 && slots != 4 && slots != 8 && slots != 16 ) {
+            throw new IllegalArgumentException("slots must be 1, 2, 4, 8 or 16 : " + slots);
+        }
+        CommandPacket polling =
+            new CommandPacket(COMMAND_POLLING
+                    , new byte[] {
+                      (byte) (systemCode >> 8)  // システムコード
+                    , (byte) (systemCode & 0xff)
+                    , (byte) 0x01              //　システムコードリクエスト
+                    , (byte) (slots - 1)});    // タイムスロット
+        byte[] frames;
+        try {
+            transport.setTimeout(FeliCaLib.getTimeout(polling, null));
+            frames = transport.transceive(polling);
+        } catch (NfcException e) {
+            return new ArrayList<FeliCaCandidate>(); // どのカードも応答しない
+        }
+        return parse(frames);
+    }
+    /**
+     * 連結された Polling応答フレームを解析します
+     *
+     * 途中で壊れたフレーム(衝突等)がある場合は、それ以降を無視します。同じIDmの応答は1つにまとめます
+     * @param frames 応答フレームを連結したバイト列をセット
+     * @return List<FeliCaCandidate> 応答したカードの一覧が戻ります
+     */
+    public static List<FeliCaCandidate> parse(byte[] frames) {
+        List<FeliCaCandidate> result = new ArrayList<FeliCaCandidate>();
+        int offset = 0;
+        while ( frames != null && offset < frames.length ) {
+            int length = frames[offset] & 0xff;
+            if ( length < POLLING_RESPONSE_LENGTH || offset + length > frames.length
+                    || frames[offset + 1] != RESPONSE_POLLING ) {
+                break;
+            }
+            IDm idm = new IDm(Util.toLong(frames, offset + 2));
+            PMm pmm = new PMm(Util.toLong(frames, offset + 10));
+            int systemCode = length >= POLLING_RESPONSE_LENGTH + 2
+                ? (frames[offset + 18] & 0xff) << 8 | (frames[offset + 19] & 0xff)
+                : SYSTEMCODE_UNKNOWN;
+            boolean duplicate = false;
+            for ( FeliCaCandidate c : result ) {
+                if ( c.idm.equals(idm) ) duplicate = true;
+            }
+            if ( !duplicate ) {
+                result.add(new FeliCaCandidate(idm, pmm, systemCode));
+            }
+            offset += length;
+        }
+        return result;
+    }
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "IDm : " + Long.toHexString(this.idm.longValue())
+            + " PMm : " + Long.toHexString(this.pmm.longValue())
+            + (this.systemCode != SYSTEMCODE_UNKNOWN
+                    ? " システムコード : " + Integer.toHexString(this.systemCode) : "");
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import static net.kazzz.util.ThreadUtil.daemonThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.IFeliCaTransport;
+
+/**
+ * カードのタッチと離脱を監視し、リスナへ通知するクラスを提供します
+ *
+ * <pre>
+ * polling()をループで呼び続ける代わりに、スケジューラで次の確認時刻を決めて待機します。
+ *
+ *  - カードが無い間は、確認間隔を最小間隔から最大間隔まで倍々に延ばします (待機中はCPUを使いません)
+ *  - カードが離れた直後は最小間隔に戻し、次のタッチを素早く検出します
+ *  - カードがある間は、Request Responseで存在を確認します
+ *  - 離脱は再検出間隔が過ぎてから通知し、その間に同じカードが再びかざされた場合は
+ *    離脱と再タッチのどちらも通知しません
+ *  - wake()を呼ぶと待機を打ち切って直ちに確認します (Androidのタグ検出Intent等との連携用)
+ *
+ *  FeliCaCardWatcher watcher = new FeliCaCardWatcher(transport, SYSTEMCODE_ANY);
+ *  watcher.addListener(listener);
+ *  watcher.start();
+ * </pre>
+ *
+ * リスナは監視用のスレッドから呼ばれます。
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaCardWatcher {
+    /** 既定の最小確認間隔 (ミリ秒) */
+    public static final long DEFAULT_MIN_INTERVAL = 50;
+    /** 既定の最大確認間隔 (ミリ秒) */
+    public static final long DEFAULT_MAX_INTERVAL = 2000;
+    /** 既定のカードがある間の確認間隔 (ミリ秒) */
+    public static final long DEFAULT_PRESENT_INTERVAL = 250;
+    /** 既定の再検出間隔 (ミリ秒) */
+    public static final long DEFAULT_DEBOUNCE = 1000;
+
+    //監視を実行するスレッド (全ウォッチャで共有します)
+    private static final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("FeliCa-watcher"));
+
+    protected final IFeliCaTransport transport;
+    protected final int systemCode;
+    protected final List<IFeliCaWatcherListener> listeners =
+        new CopyOnWriteArrayList<IFeliCaWatcherListener>();
+    protected long minInterval = DEFAULT_MIN_INTERVAL;
+    protected long maxInterval = DEFAULT_MAX_INTERVAL;
+    protected long presentInterval = DEFAULT_PRESENT_INTERVAL;
+    protected long debounce = DEFAULT_DEBOUNCE;
+    protected FeliCaBlockCache blockCache;
+
+    protected FeliCaCandidate current;  // かざされているカード
+    protected FeliCaTag currentTag;     // 存在確認用のタグ
+    protected IDm pendingDeparture;     // 離れたが、離脱を通知していないカード
+    protected long departedAt;
+    protected long interval;            // カードが無い間の次の確認間隔
+    protected ScheduledFuture<?> task;
+    protected boolean running;
+    /**
+     * コンストラクタ
+     *
+     * @param transport トランスポートをセット
+     * @param systemCode Pollingするシステムコードをセット
+     */
+    public FeliCaCardWatcher(IFeliCaTransport transport, int systemCode) {
+        this.transport = transport;
+        this.systemCode = systemCode;
+    }
+    /**
+     * リスナを追加します
+     * @param listener リスナをセット
+     */
+    public void addListener(IFeliCaWatcherListener listener) {
+        this.listeners.add(listener);
+    }
+    /**
+     * リスナを削除します
+     * @param listener リスナをセット
+     */
+    public void removeListener(IFeliCaWatcherListener listener) {
+        this.listeners.remove(listener);
+    }
+    /**
+     * カードが無い間の確認間隔を設定します
+     *
+     * @param minInterval 最小確認間隔 (ミリ秒)をセット
+     * @param maxInterval 最大確認間隔 (ミリ秒)をセット
+     */
+    public synchronized void setIdleInterval(long minInterval, long maxInterval) {
+        if ( minInterval <= 0 || maxInterval < minInterval ) {
+            throw new IllegalArgumentException("illegal interval : " + minInterval + " - " + maxInterval);
+        }
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+    /**
+     * カードがある間の確認間隔を設定します
+     * @param presentInterval 確認間隔 (ミリ秒)をセット
+     */
+    public synchronized void setPresentInterval(long presentInterval) {
+        this.presentInterval = presentInterval;
+    }
+    /**
+     * 再検出間隔を設定します
+     *
+     * 離脱の通知はこの時間だけ遅れ、その間に同じカードが再びかざされた場合は
+     * 離脱と再タッチのどちらも通知しません
+     * @param debounce 再検出間隔 (ミリ秒)をセット (0の場合は直ちに通知します)
+     */
+    public synchronized void setDebounce(long debounce) {
+        this.debounce = debounce;
+    }
+    /**
+     * カードが離れた際にブロックを破棄するキャッシュを設定します
+     * @param blockCache ブロックキャッシュをセット (使用しない場合はnull)
+     */
+    public synchronized void setBlockCache(FeliCaBlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+    /**
+     * 監視を開始します
+     */
+    public synchronized void start() {
+        if ( this.running ) return;
+        this.running = true;
+        this.interval = this.minInterval;
+        this.schedule(0);
+    }
+    /**
+     * 監視を停止します
+     */
+    public synchronized void stop() {
+        this.running = false;
+        if ( this.task != null ) {
+            this.task.cancel(false);
+            this.task = null;
+        }
+    }
+    /**
+     * 待機を打ち切って直ちに確認します
+     *
+     * 確認間隔は最小間隔に戻ります
+     */
+    public synchronized void wake() {
+        if ( !this.running ) return;
+        this.interval = this.minInterval;
+        this.schedule(0);
+    }
+    /**
+     * かざされているカードを取得します
+     * @return FeliCaCandidate カードが戻ります (無い場合はnull)
+     */
+    public synchronized FeliCaCandidate getCurrent() {
+        return this.current;
+    }
+    /**
+     * 1回分の確認を行い、次の確認を予約します
+     */
+    protected void tick() {
+        FeliCaCandidate arrived = null;
+        IDm departed = null;
+        synchronized (this) {
+            if ( !this.running ) return;
+            long now = System.currentTimeMillis();
+            try {
+                if ( this.current != null && !this.isStillPresent() ) {
+                    // 離脱の通知は再検出間隔が過ぎるまで保留します
+                    this.pendingDeparture = this.current.getIDm();
+                    if ( this.blockCache != null ) {
+                        this.blockCache.invalidate(this.pendingDeparture);
+                    }
+                    this.departedAt = now;
+                    this.current = null;
+                    this.currentTag = null;
+                    this.interval = this.minInterval; // 離れた直後は素早く確認します
+                }
+                if ( this.current == null ) {
+                    List<FeliCaCandidate> candidates =
+                        FeliCaCandidate.poll(this.transport, this.systemCode, 1);
+                    if ( !candidates.isEmpty() ) {
+                        this.current = candidates.get(0);
+                        this.currentTag = new FeliCaTag(this.transport
+                                , this.current.getIDm(), this.current.getPMm());
+                        if ( !this.current.getIDm().equals(this.pendingDeparture) ) {
+                            departed = this.pendingDeparture; // 別のカードに替わった
+                            arrived = this.current;
+                        }
+                        this.pendingDeparture = null;
+                    }
+                }
+            } catch (FeliCaException e) {
+                // 次の確認で再試行します
+            }
+            long next;
+            if ( this.current != null ) {
+                next = this.presentInterval;
+            } else {
+                next = this.interval;
+                this.interval = Math.min(this.interval * 2, this.maxInterval);
+                if ( this.pendingDeparture != null ) {
+                    long remaining = this.departedAt + this.debounce - now;
+                    if ( remaining <= 0 ) {
+                        departed = this.pendingDeparture;
+                        this.pendingDeparture = null;
+                    } else {
+                        next = Math.min(next, remaining);
+                    }
+                }
+            }
+            this.schedule(next);
+        }
+        //リスナはロックの外で呼びます
+        for ( IFeliCaWatcherListener l : this.listeners ) {
+            if ( departed != null ) l.onDeparted(departed);
+            if ( arrived != null ) l.onArrived(arrived);
+        }
+    }
+    /**
+     * かざされているカードが存在し続けているかを確認します
+     */
+    protected boolean isStillPresent() throws FeliCaException {
+        if ( this.currentTag.requestResponse() >= 0 ) return true;
+        for ( FeliCaCandidate c : FeliCaCandidate.poll(this.transport, this.systemCode, 1) ) {
+            if ( c.getIDm().equals(this.current.getIDm()) ) return true;
+        }
+        return false;
+    }
+    /**
+     * 次の確認を予約します
+     */
+    protected void schedule(long delay) {
+        if ( this.task != null ) {
+            this.task.cancel(false);
+        }
+        this.task = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+/**
+ * コマンドの送受信に失敗した場合の例外クラスを、失敗の種別と共に提供します
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaCommandException extends FeliCaException {
+    private static final long serialVersionUID = 1L;
+    /**
+     * 失敗の種別を定義します
+     */
+    public enum FailureType {
+        TAG_LOST,            // タグを見失った (応答無し)
+        TIMEOUT,             // 応答タイムアウト、又は送受信エラー
+        MALFORMED_LENGTH,    // データ長バイトが不正
+        WRONG_RESPONSE_CODE, // レスポンスコードがコマンドに対応していない
+        IDM_MISMATCH         // 応答のIDmがコマンドのIDmと異なる
+    }
+
+    private final FailureType failureType;
+    /**
+     * コンストラクタ
+     * @param failureType 失敗の種別をセット
+     * @param message メッセージをセット
+     */
+    public FeliCaCommandException(FailureType failureType, String message) {
+        super(failureType + ": " + message);
+        this.failureType = failureType;
+    }
+    /**
+     * コンストラクタ
+     * @param failureType 失敗の種別をセット
+     * @param cause 元の例外をセット
+     */
+    public FeliCaCommandException(FailureType failureType, Exception cause) {
+        super(cause);
+        this.failureType = failureType;
+    }
+    /**
+     * 失敗の種別を取得します
+     * @return FailureType 失敗の種別が戻ります
+     */
+    public FailureType getFailureType() {
+        return this.failureType;
+    }
+}
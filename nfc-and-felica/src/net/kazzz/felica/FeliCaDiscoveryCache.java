@@ -0,0 +1,216 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import static net.kazzz.felica.lib.FeliCaLib.SYSTEMCODE_ANY;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.kazzz.felica.lib.FeliCaLib.AreaCode;
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.PMm;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+
+/**
+ * Search Service Codeで列挙したエリアとサービスの構成を記録するキャッシュを提供します
+ *
+ * <pre>
+ * 同じ構成のカードを繰り返し読む場合、キャッシュに記録された構成を使用して列挙の通信を省きます。
+ * キーは次のいずれかを選択します。
+ *
+ *   KEY_BY_IDM    : カード(システム)毎のIDm。カード毎に1度だけ列挙します
+ *   KEY_BY_LAYOUT : システムコード + PMmのICコード。同じ発行者の同じ品種のカードは
+ *                   同じ構成であるとみなし、初めて見るカードでも列挙しません
+ *
+ * save()/load()でファイルへ保存し、アプリケーションの再起動後も使用できます。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaDiscoveryCache {
+    /** カード(システム)毎のIDmをキーにします */
+    public static final int KEY_BY_IDM = 0;
+    /** システムコードとPMmのICコードをキーにします */
+    public static final int KEY_BY_LAYOUT = 1;
+
+    static final long NO_NODE = -1L;
+    private static final long AREA_FLAG = 1L << 32;
+    private static final int FILE_MAGIC = 0x46435343; // "FCSC"
+    private static final int FILE_VERSION = 1;
+
+    protected final int keyType;
+    protected final Map<Long, long[]> entries = new HashMap<Long, long[]>();
+    /**
+     * コンストラクタ
+     *
+     * @param keyType キーの種類 (KEY_BY_IDM 又は KEY_BY_LAYOUT)をセット
+     */
+    public FeliCaDiscoveryCache(int keyType) {
+        if ( keyType != KEY_BY_IDM && keyType != KEY_BY_LAYOUT ) {
+            throw new IllegalArgumentException("unknown key type : " + keyType);
+        }
+        this.keyType = keyType;
+    }
+    /**
+     * キャッシュのキーを生成できるかを検査します
+     *
+     * KEY_BY_LAYOUTの場合、カードのシステムコードが不明又はワイルドカード(0xFFFF)では
+     * 異なるカードを区別できないため、キャッシュを使用できません
+     *
+     * @param idm PollingしたシステムのIDmをセット
+     * @param pmm PollingしたシステムのPMmをセット
+     * @param systemCode Pollingの応答に含まれていたカードのシステムコードをセット (不明な場合は-1)
+     * @return boolean キーを生成できる場合trueが戻ります
+     */
+    public boolean isKeyable(IDm idm, PMm pmm, int systemCode) {
+        if ( this.keyType == KEY_BY_IDM ) {
+            return idm != null;
+        }
+        return systemCode >= 0 && systemCode != SYSTEMCODE_ANY;
+    }
+    /**
+     * キャッシュのキーを取得します
+     *
+     * @param idm PollingしたシステムのIDmをセット
+     * @param pmm PollingしたシステムのPMmをセット
+     * @param systemCode Pollingの応答に含まれていたカードのシステムコードをセット
+     * @return long キーが戻ります
+     */
+    public long keyOf(IDm idm, PMm pmm, int systemCode) {
+        if ( this.keyType == KEY_BY_IDM ) {
+            return idm.longValue();
+        }
+        return (long) (systemCode & 0xffff) << 16 | (pmm != null ? pmm.getICCode() : 0);
+    }
+    /**
+     * 記録された構成を取得します
+     *
+     * @param key キーをセット
+     * @return long[] ノードの配列が戻ります (記録が無い場合はnull)
+     */
+    public synchronized long[] get(long key) {
+        return this.entries.get(key);
+    }
+    /**
+     * 構成を記録します
+     *
+     * @param key キーをセット
+     * @param nodes ノードの配列をセット
+     */
+    public synchronized void put(long key, long[] nodes) {
+        this.entries.put(key, nodes);
+    }
+    /**
+     * 構成の記録を削除します
+     *
+     * カードの構成が変わった場合(サービスが見つからない等)に使用します
+     * @param key キーをセット
+     */
+    public synchronized void remove(long key) {
+        this.entries.remove(key);
+    }
+    /**
+     * 記録されている構成の数を取得します
+     * @return int 構成の数が戻ります
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+    /**
+     * 全ての記録を削除します
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+    /**
+     * ファイルへ保存します
+     *
+     * @param file 保存するファイルをセット
+     * @throws IOException
+     */
+    public synchronized void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeShort(FILE_VERSION);
+            out.writeShort(this.keyType);
+            out.writeInt(this.entries.size());
+            for ( Map.Entry<Long, long[]> e : this.entries.entrySet() ) {
+                out.writeLong(e.getKey());
+                out.writeInt(e.getValue().length);
+                for ( long node : e.getValue() ) {
+                    out.writeLong(node);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+    /**
+     * ファイルから読み込み、記録に追加します
+     *
+     * @param file 保存したファイルをセット
+     * @throws IOException ファイルを読めない、又はキーの種類が異なる場合にスローされます
+     */
+    public synchronized void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if ( in.readInt() != FILE_MAGIC || in.readShort() != FILE_VERSION ) {
+                throw new IOException("not a discovery cache : " + file);
+            }
+            int keyType = in.readShort();
+            if ( keyType != this.keyType ) {
+                throw new IOException("key type mismatch : " + keyType);
+            }
+            int n = in.readInt();
+            for ( int i = 0; i < n; i++ ) {
+                long key = in.readLong();
+                long[] nodes = new long[in.readInt()];
+                for ( int j = 0; j < nodes.length; j++ ) {
+                    nodes[j] = in.readLong();
+                }
+                this.entries.put(key, nodes);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static long serviceNode(ServiceCode serviceCode) {
+        return serviceCode.getCode();
+    }
+    static long areaNode(AreaCode areaCode) {
+        return AREA_FLAG | (long) areaCode.getEndServiceCode() << 16 | areaCode.getCode();
+    }
+    static boolean isArea(long node) {
+        return (node & AREA_FLAG) != 0;
+    }
+    static ServiceCode toServiceCode(long node) {
+        return new ServiceCode((int) node & 0xffff);
+    }
+    static AreaCode toAreaCode(long node) {
+        return new AreaCode((int) node & 0xffff, (int) (node >>> 16) & 0xffff);
+    }
+}
@@ -19,16 +19,24 @@ import static net.kazzz.felica.lib.FeliCaLib.SERVICE_FELICA_LITE_READWRITE;
 import static net.kazzz.felica.lib.FeliCaLib.SYSTEMCODE_FELICA_LITE;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import net.kazzz.felica.command.PollingResponse;
 import net.kazzz.felica.command.ReadResponse;
 import net.kazzz.felica.command.WriteResponse;
+import net.kazzz.felica.command.WriteResponseView;
+import net.kazzz.felica.command.WriteResult;
 import net.kazzz.felica.lib.FeliCaLib;
 import net.kazzz.felica.lib.FeliCaLib.CommandPacket;
 import net.kazzz.felica.lib.FeliCaLib.CommandResponse;
 import net.kazzz.felica.lib.FeliCaLib.IDm;
 import net.kazzz.felica.lib.FeliCaLib.MemoryConfigurationBlock;
 import net.kazzz.felica.lib.FeliCaLib.PMm;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+import net.kazzz.felica.lib.FeliCaRetryHandler;
+import net.kazzz.felica.lib.FeliCaSession;
+import net.kazzz.felica.lib.IFeliCaTransport;
 import net.kazzz.nfc.NfcTag;
 import android.nfc.Tag;
 import android.os.Parcel;
@@ -59,6 +67,10 @@ public class FeliCaLiteTag extends NfcTag {
     protected Tag nfcTag;
     protected IDm idm;
     protected PMm pmm;
+    protected IFeliCaTransport transport;
+    protected boolean ownsTransport = true; // falseの場合はclose()でトランスポートを閉じません (select()で取得したタグ)
+    protected FeliCaRetryHandler retryHandler = new FeliCaRetryHandler();
+    protected int systemCode = SYSTEMCODE_FELICA_LITE; // 再ポーリングに使用するシステムコード
     /**
      * コンストラクタ
      * @param in 入力するパーセル化オブジェクトをセット
@@ -74,6 +86,26 @@ public class FeliCaLiteTag extends NfcTag {
     public FeliCaLiteTag(Parcelable nfcTag) {
         this.nfcTag =  (Tag)nfcTag;
     }
+    /**
+     * コンストラクタ
+     * 
+     * @param transport コマンドの送受信に使用するトランスポートをセット
+     */
+    public FeliCaLiteTag(IFeliCaTransport transport) {
+        this.transport = transport;
+    }
+    /**
+     * コンストラクタ
+     * 
+     * @param transport コマンドの送受信に使用するトランスポートをセット
+     * @param idm FeliCa IDmをセット
+     * @param pmm FeliCa PMmをセット
+     */
+    public FeliCaLiteTag(IFeliCaTransport transport, IDm idm, PMm pmm) {
+        this.transport = transport;
+        this.idm = idm;
+        this.pmm = pmm;
+    }
     /**
      * コンストラクタ
      * 
@@ -114,7 +146,7 @@ public class FeliCaLiteTag extends NfcTag {
      * @throws FeliCaException
      */
     public byte[] polling() throws FeliCaException {
-        if ( this.nfcTag == null ) {
+        if ( this.nfcTag == null && this.transport == null ) {
             throw new FeliCaException("tagService is null. no polling execution");
         }
         CommandPacket polling = 
@@ -123,12 +155,41 @@ public class FeliCaLiteTag extends NfcTag {
                     , (byte) (SYSTEMCODE_FELICA_LITE & 0xff)
                     , (byte) 0x01                           //　システムコードリクエスト
                     , (byte) 0x00});                        // タイムスロット}; 
-        CommandResponse r = FeliCaLib.execute(this.nfcTag, polling);
+        CommandResponse r = this.execute(polling);
         PollingResponse pr = new PollingResponse(r);
         this.idm = pr.getIDm();
         this.pmm = pr.getPMm();
         return pr.getBytes();
     }
+    /**
+     * 複数のタイムスロットでポーリングし、フィールド内の全てのFeliCa Liteを取得します
+     * 
+     * 応答したカードはselect()で個別のタグとして扱えます。このタグのIDmは変更しません
+     * @param slots タイムスロット数 (1, 2, 4, 8, 16)をセットします
+     * @return List<FeliCaCandidate> 応答したカードの一覧が戻ります
+     * @throws FeliCaException
+     */
+    public List<FeliCaCandidate> pollingAll(int slots) throws FeliCaException {
+        if ( this.nfcTag == null && this.transport == null ) {
+            throw new FeliCaException("tagService is null. no polling execution");
+        }
+        return FeliCaCandidate.poll(this.getTransport(), SYSTEMCODE_FELICA_LITE, slots);
+    }
+    /**
+     * pollingAll()で取得したカードを対象とするタグを取得します
+     * 
+     * 取得したタグはこのタグとトランスポート、再送ハンドラを共有します。
+     * 共有したトランスポートはこのタグのclose()で閉じます (取得したタグのclose()では閉じません)
+     * @param candidate 対象のカードをセットします
+     * @return FeliCaLiteTag 対象のカードを扱うタグが戻ります
+     */
+    public FeliCaLiteTag select(FeliCaCandidate candidate) {
+        FeliCaLiteTag tag = new FeliCaLiteTag(this.getTransport(), candidate.getIDm(), candidate.getPMm());
+        tag.nfcTag = this.nfcTag;
+        tag.ownsTransport = false;
+        tag.retryHandler = this.retryHandler;
+        return tag;
+    }
     /**
      * カードデータをポーリングしてIDmを取得します
      * 
@@ -176,7 +237,7 @@ public class FeliCaLiteTag extends NfcTag {
      * @throws FeliCaException
      */
     public ReadResponse readWithoutEncryption(byte addr) throws FeliCaException {
-        if ( this.nfcTag == null ) {
+        if ( this.nfcTag == null && this.transport == null ) {
             throw new FeliCaException("tagService is null. no read execution");
         }
         // read without encryption
@@ -187,7 +248,7 @@ public class FeliCaLiteTag extends NfcTag {
                     , (byte) (SERVICE_FELICA_LITE_READONLY & 0xff)
                     , (byte) 0x01                 // 同時読み込みブロック数
                     , (byte) 0x80, addr });       // ブロックリスト
-        CommandResponse r = FeliCaLib.execute(this.nfcTag, readWoEncrypt);
+        CommandResponse r = this.execute(readWoEncrypt);
         return new ReadResponse(r); 
     }
     /**
@@ -199,9 +260,12 @@ public class FeliCaLiteTag extends NfcTag {
      * @throws FeliCaException
      */
     public WriteResponse writeWithoutEncryption(byte addr, byte[] buff) throws FeliCaException {
-        if ( this.nfcTag == null ) {
+        if ( this.nfcTag == null && this.transport == null ) {
             throw new FeliCaException("tagService is null. no write execution");
         }
+        if ( buff.length > 16 ) {
+            throw new IllegalArgumentException("block data must be 16 bytes or less : " + buff.length);
+        }
         // write without encryption
         ByteBuffer b =  ByteBuffer.allocate(22); // コマンド 6バイト + 書きだすデータ 16バイト
         b.put(new byte[]{
@@ -211,13 +275,113 @@ public class FeliCaLiteTag extends NfcTag {
                 , (byte) 0x01                                  // 同時書き込みブロック数
                 , (byte) 0x80, addr                            // ブロックリスト 0x80は (2バイトブロックエレメント+ランダムサービス)
                 });
-        b.put(buff, 0, buff.length > 16 ? 16 : buff.length); //書き出すデータ  (一度につき16バイト)
+        b.put(buff); //書き出すデータ  (一度につき16バイト)
         
         CommandPacket writeWoEncrypt = 
             new CommandPacket(COMMAND_WRITE_WO_ENCRYPTION, idm, b.array());
-        CommandResponse r = FeliCaLib.execute(this.nfcTag, writeWoEncrypt);
+        CommandResponse r = this.execute(writeWoEncrypt);
         return new WriteResponse(r);
     }
+    /**
+     * 認証不要領域の連続したブロックへ任意の長さのデータを書き込みます
+     * 
+     * <pre>
+     * FeliCa Liteは1コマンドで1ブロックしか書き込めないため、ブロック毎にコマンドを送信します。
+     * データは16バイト毎にブロックへ割り当てられ、最後のブロックの余りは0で埋められます。
+     * エラーが返された場合は、以降のブロックを書き込まずに終了します。
+     * </pre>
+     * 
+     * @param addr 書き込む先頭ブロックのアドレス(0オリジン)をセット
+     * @param data 書きこむデータをセット
+     * @return WriteResult ブロック毎の書き込み結果が戻ります
+     * @throws FeliCaException
+     */
+    public WriteResult writeWithoutEncryption(int addr, byte[] data) throws FeliCaException {
+        if ( this.nfcTag == null && this.transport == null ) {
+            throw new FeliCaException("tagService is null. no write execution");
+        }
+        int count = (data.length + 15) / 16;
+        if ( addr < 0 || addr + count > 0x100 ) {
+            throw new IllegalArgumentException("addr : " + addr + " count : " + count);
+        }
+        int[] blocks = new int[count];
+        for ( int i = 0; i < count; i++ ) {
+            blocks[i] = addr + i;
+        }
+        byte[] payload = data.length == count * 16 ? data : Arrays.copyOf(data, count * 16);
+        ServiceCode serviceCode = new ServiceCode(new byte[]{
+                  (byte) (SERVICE_FELICA_LITE_READWRITE >> 8)  //サービスコード: リード/ライト
+                , (byte) (SERVICE_FELICA_LITE_READWRITE & 0xff)});
+        WriteResult result = new WriteResult(blocks);
+        WriteResponseView view = new WriteResponseView();
+        for ( int i = 0; i < count; i++ ) {
+            view.wrap(this.executeRaw(
+                    FeliCaTag.newWritePacket(idm, serviceCode, blocks, payload, i, i + 1)));
+            result.setStatus(i, i + 1, view.getStatusFlag1(), view.getStatusFlag2());
+            if ( view.getStatusFlag1() != 0 ) break;
+        }
+        return result;
+    }
+    /**
+     * PMmから算出したタイムアウトでコマンドを実行します
+     * 
+     * 再送ハンドラが設定されている場合は、冪等なコマンドの失敗を再送で復旧します
+     * 
+     * @param commandPacket 実行するコマンドパケットをセット
+     * @return CommandResponse コマンドの実行結果が戻ります
+     * @throws FeliCaException
+     */
+    protected CommandResponse execute(CommandPacket commandPacket) throws FeliCaException {
+        return FeliCaLib.execute(this.getTransport(), commandPacket, this.pmm
+                , this.retryHandler, this.systemCode);
+    }
+    /**
+     * コマンドを実行し、応答フレームを解析せずに取得します
+     * 
+     * ResponseViewと組み合わせることで、応答の複製を作らずに結果を参照できます
+     * @param commandPacket 実行するコマンドパケットをセット
+     * @return byte[] 応答フレームが戻ります
+     * @throws FeliCaException
+     */
+    protected byte[] executeRaw(CommandPacket commandPacket) throws FeliCaException {
+        return FeliCaLib.executeRaw(this.getTransport(), commandPacket, this.pmm
+                , this.retryHandler, this.systemCode);
+    }
+    /**
+     * 失敗したコマンドの再送を行うハンドラを設定します
+     * 
+     * @param retryHandler 再送ハンドラをセット (nullの場合は再送しません)
+     */
+    public void setRetryHandler(FeliCaRetryHandler retryHandler) {
+        this.retryHandler = retryHandler;
+    }
+    /**
+     * コマンド発行に使用するトランスポートを取得します
+     * 
+     * Tagから生成した場合はFeliCaSessionが使われ、接続は複数のコマンドにわたって保持されます
+     * @return IFeliCaTransport トランスポートが戻ります
+     */
+    public synchronized IFeliCaTransport getTransport() {
+        if ( this.transport == null ) {
+            this.transport = new FeliCaSession(this.nfcTag);
+        }
+        return this.transport;
+    }
+    /**
+     * 保持しているトランスポートを閉じます
+     * 
+     * トランスポートを閉じるのはセッションを生成したタグだけです。select()で取得したタグは
+     * トランスポートを共有しているため、close()を呼んでもトランスポートを閉じません
+     */
+    public synchronized void close() {
+        if ( !this.ownsTransport ) return;
+        if ( this.transport != null ) {
+            this.transport.close();
+            if ( this.nfcTag != null ) {
+                this.transport = null;
+            }
+        }
+    }
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
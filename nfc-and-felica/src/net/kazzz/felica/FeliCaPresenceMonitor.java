@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import static net.kazzz.util.ThreadUtil.daemonThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+
+/**
+ * カードがリーダ上に存在し続けているかを一定間隔で確認するクラスを提供します
+ *
+ * <pre>
+ * 確認にはIDmだけを送るRequest Response(0x04)を使用し、タグのIDm/PMmは変更しません。
+ * Request Responseに応答しなかった場合に限り、1スロットのPollingで同じIDmのカードを探し、
+ * 見つからなければ取り除かれたと判断します。取り除かれた後はPollingで再検出を待ちます。
+ * 取り除かれた際は、タグに設定されたブロックキャッシュからそのカードのブロックを破棄します。
+ *
+ *  FeliCaPresenceMonitor monitor = new FeliCaPresenceMonitor(tag, listener);
+ *  monitor.start(250);
+ *  ...
+ *  monitor.stop();
+ *
+ * リスナは監視用のスレッドから呼ばれます。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaPresenceMonitor {
+    /** 既定の確認間隔 (ミリ秒) */
+    public static final long DEFAULT_PERIOD = 500;
+
+    //確認を実行するスレッド (全モニタで共有します)
+    private static final ScheduledExecutorService heartbeat =
+        Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("FeliCa-presence"));
+
+    protected final FeliCaTag tag;
+    protected final IDm idm;
+    protected final IFeliCaPresenceListener listener;
+    protected volatile boolean present = true;
+    protected ScheduledFuture<?> task;
+    /**
+     * コンストラクタ
+     *
+     * @param tag Polling済みのFeliCaTagをセット
+     * @param listener 状態の変化を受け取るリスナをセット
+     */
+    public FeliCaPresenceMonitor(FeliCaTag tag, IFeliCaPresenceListener listener) {
+        this.tag = tag;
+        this.idm = tag.idm;
+        this.listener = listener;
+        if ( this.idm == null ) {
+            throw new IllegalStateException("tag is not polled");
+        }
+    }
+    /**
+     * 一定間隔での確認を開始します
+     *
+     * @param periodMillis 確認間隔 (ミリ秒)をセット
+     */
+    public synchronized void start(long periodMillis) {
+        if ( this.task != null ) {
+            throw new IllegalStateException("monitor is already started");
+        }
+        this.task = heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (FeliCaException e) {
+                    // 次の周期で再確認します
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * 確認を停止します
+     */
+    public synchronized void stop() {
+        if ( this.task != null ) {
+            this.task.cancel(false);
+            this.task = null;
+        }
+    }
+    /**
+     * 最後に確認した時点でカードが存在していたかを検査します
+     * @return boolean 存在していた場合trueが戻ります
+     */
+    public boolean isPresent() {
+        return this.present;
+    }
+    /**
+     * カードの存在を1回確認し、状態が変化した場合はリスナへ通知します
+     *
+     * @return boolean カードが存在する場合trueが戻ります
+     * @throws FeliCaException
+     */
+    public synchronized boolean check() throws FeliCaException {
+        boolean now;
+        if ( this.present && this.tag.requestResponse() >= 0 ) {
+            now = true;
+        } else {
+            now = this.pollForCard();
+        }
+        if ( now != this.present ) {
+            this.present = now;
+            if ( !now && this.tag.blockCache != null ) {
+                this.tag.blockCache.invalidate(this.idm); // 離れたカードのブロックは破棄します
+            }
+            if ( this.listener != null ) {
+                if ( now ) {
+                    this.listener.onPresent(this.idm);
+                } else {
+                    this.listener.onRemoved(this.idm);
+                }
+            }
+        }
+        return now;
+    }
+    /**
+     * 1スロットのPollingで監視しているカードを探します
+     */
+    protected boolean pollForCard() throws FeliCaException {
+        List<FeliCaCandidate> candidates =
+            FeliCaCandidate.poll(this.tag.getTransport(), this.tag.systemCode, 1);
+        for ( FeliCaCandidate c : candidates ) {
+            if ( c.getIDm().equals(this.idm) ) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_READ_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.STATUSFLAG2_ERROR_BLOCK_COUNT;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.kazzz.felica.command.ReadResponseView;
+import net.kazzz.felica.lib.FeliCaCommandRegistry;
+import net.kazzz.felica.lib.FeliCaLib.CommandPacket;
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+
+/**
+ * 複数のサービスにまたがる読み込みを、最小のRead Without Encryptionコマンドにまとめるクラスを提供します
+ *
+ * <pre>
+ * add()で(サービス, ブロック)の読み込み要求を登録し、execute()でまとめて読み込みます。
+ * 要求は重複を除いてサービスコード、ブロック番号の順に並べ、1コマンドのサービス数(16)、
+ * ブロック数(FeliCaTag.getMaxReadBlocks())、フレーム長(255バイト)の制限内で先頭から詰めます。
+ * 読み込んだブロックは各要求のReadRequestに振り分けられます。
+ *
+ *  FeliCaReadPlanner planner = new FeliCaReadPlanner();
+ *  ReadRequest balance = planner.add(new ServiceCode(0x008b), 0);
+ *  ReadRequest history = planner.add(new ServiceCode(0x090f), 0, 20);
+ *  planner.execute(tag); // 2コマンド
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaReadPlanner {
+    /** 1コマンドで指定できる最大サービス数 */
+    public static final int MAX_SERVICES = 16;
+    public static final int BLOCK_SIZE = ReadResponseView.BLOCK_SIZE;
+
+    /**
+     * 1つのサービスの連続したブロックに対する読み込み要求を提供します
+     */
+    public static class ReadRequest {
+        final ServiceCode serviceCode;
+        final int addr;
+        final int count;
+        byte[] data;
+        int statusFlag1;
+        int statusFlag2;
+
+        ReadRequest(ServiceCode serviceCode, int addr, int count) {
+            this.serviceCode = serviceCode;
+            this.addr = addr;
+            this.count = count;
+        }
+        /**
+         * サービスコードを取得します
+         * @return ServiceCode サービスコードが戻ります
+         */
+        public ServiceCode getServiceCode() {
+            return this.serviceCode;
+        }
+        /**
+         * 先頭ブロックのアドレスを取得します
+         * @return int 先頭ブロックのアドレスが戻ります
+         */
+        public int getAddr() {
+            return this.addr;
+        }
+        /**
+         * ブロック数を取得します
+         * @return int ブロック数が戻ります
+         */
+        public int getCount() {
+            return this.count;
+        }
+        /**
+         * 読み込んだデータを取得します
+         * @return byte[] ブロックを連結したデータ (count * 16バイト)が戻ります (未実行又は失敗した場合はnull)
+         */
+        public byte[] getData() {
+            return this.data;
+        }
+        /**
+         * 読み込みに成功したか否かを検査します
+         * @return boolean 成功した場合trueが戻ります
+         */
+        public boolean isSuccess() {
+            return this.data != null;
+        }
+        /**
+         * 失敗したコマンドのstatusFlag1を取得します
+         * @return int statusFlag1が戻ります (成功した場合は0)
+         */
+        public int getStatusFlag1() {
+            return this.statusFlag1;
+        }
+        /**
+         * 失敗したコマンドのstatusFlag2を取得します
+         * @return int statusFlag2が戻ります (成功した場合は0)
+         */
+        public int getStatusFlag2() {
+            return this.statusFlag2;
+        }
+    }
+
+    protected final List<ReadRequest> requests = new ArrayList<ReadRequest>();
+    /**
+     * 1ブロックの読み込み要求を登録します
+     *
+     * @param serviceCode サービスコードをセット
+     * @param block ブロック番号 (0オリジン)をセット
+     * @return ReadRequest 登録した要求が戻ります
+     */
+    public ReadRequest add(ServiceCode serviceCode, int block) {
+        return this.add(serviceCode, block, 1);
+    }
+    /**
+     * 連続したブロックの読み込み要求を登録します
+     *
+     * @param serviceCode サービスコードをセット
+     * @param addr 先頭ブロックのアドレス (0オリジン)をセット
+     * @param count ブロック数をセット
+     * @return ReadRequest 登録した要求が戻ります
+     */
+    public ReadRequest add(ServiceCode serviceCode, int addr, int count) {
+        if ( addr < 0 || count < 1 || addr + count > 0x10000 ) {
+            throw new IllegalArgumentException("addr : " + addr + " count : " + count);
+        }
+        ReadRequest r = new ReadRequest(serviceCode, addr, count);
+        this.requests.add(r);
+        return r;
+    }
+    /**
+     * 登録した要求を全て破棄します
+     */
+    public void clear() {
+        this.requests.clear();
+    }
+    /**
+     * 登録した要求を読み込むコマンドの一覧を生成します
+     *
+     * @param idm 対象カードのIDmをセット
+     * @param maxBlocks 1コマンドで読み込む最大ブロック数をセット
+     * @return List<CommandPacket> 送信順のコマンドパケットが戻ります
+     * @throws FeliCaException
+     */
+    public List<CommandPacket> plan(IDm idm, int maxBlocks) throws FeliCaException {
+        long[] keys = this.keys();
+        List<CommandPacket> packets = new ArrayList<CommandPacket>();
+        for ( int from = 0; from < keys.length; ) {
+            int to = this.nextFrame(keys, from, maxBlocks);
+            packets.add(this.newPacket(idm, keys, from, to));
+            from = to;
+        }
+        return packets;
+    }
+    /**
+     * 登録した要求をまとめて読み込み、結果を各要求に振り分けます
+     *
+     * <pre>
+     * ステータスフラグがエラーのコマンドに含まれていた要求は失敗となり、statusFlag1/2が設定されます。
+     * ブロック数の不正(0xA2)が返された場合は、FeliCaTagの最大ブロック数を半分にして読み直します。
+     * 複数のサービスを含むコマンドがエラーとなった場合は、サービス毎のコマンドに分けて読み直し、
+     * エラーとなったサービスの要求だけを失敗とします。
+     * </pre>
+     *
+     * @param tag 読み込むFeliCaTagをセット
+     * @return int 送信したコマンドの数が戻ります
+     * @throws FeliCaException 通信に失敗した場合にスローされます
+     */
+    public int execute(FeliCaTag tag) throws FeliCaException {
+        if ( tag.nfcTag == null && tag.transport == null ) {
+            throw new FeliCaException("tagService is null. no read execution");
+        }
+        long[] keys = this.keys();
+        byte[] blocks = new byte[keys.length * BLOCK_SIZE];
+        int[] status = new int[keys.length]; // statusFlag1 << 8 | statusFlag2
+        ReadResponseView view = new ReadResponseView();
+        int frames = 0;
+        int splitEnd = 0; // この位置まではサービス毎に分けて読み直します
+        for ( int from = 0; from < keys.length; ) {
+            int to = this.nextFrame(keys, from, tag.getMaxReadBlocks());
+            if ( from < splitEnd ) {
+                to = Math.min(to, this.serviceEnd(keys, from));
+            }
+            view.wrap(tag.executeRaw(this.newPacket(tag.idm, keys, from, to)));
+            frames++;
+            if ( view.getStatusFlag1() != 0 ) {
+                if ( view.getStatusFlag2() == STATUSFLAG2_ERROR_BLOCK_COUNT && to - from > 1 ) {
+                    tag.setMaxReadBlocks((to - from) / 2);
+                    continue;
+                }
+                if ( this.serviceEnd(keys, from) < to ) {
+                    splitEnd = to;
+                    continue;
+                }
+                Arrays.fill(status, from, to, view.getStatusFlag1() << 8 | view.getStatusFlag2());
+            } else if ( view.getBlockCount() != to - from ) {
+                throw new FeliCaException("read failed. expected " + (to - from)
+                        + " blocks but " + view.getBlockCount());
+            } else {
+                for ( int i = from; i < to; i++ ) {
+                    view.copyBlock(i - from, blocks, i * BLOCK_SIZE);
+                }
+            }
+            from = to;
+        }
+        this.scatter(keys, blocks, status);
+        return frames;
+    }
+    /**
+     * 読み込んだブロックを各要求に振り分けます
+     */
+    protected void scatter(long[] keys, byte[] blocks, int[] status) {
+        for ( ReadRequest r : this.requests ) {
+            int first = Arrays.binarySearch(keys, key(r.serviceCode.getCode(), r.addr));
+            int failed = 0;
+            for ( int i = first; i < first + r.count && failed == 0; i++ ) {
+                failed = status[i];
+            }
+            r.statusFlag1 = failed >> 8;
+            r.statusFlag2 = failed & 0xff;
+            if ( failed != 0 ) {
+                r.data = null;
+                continue;
+            }
+            r.data = new byte[r.count * BLOCK_SIZE];
+            System.arraycopy(blocks, first * BLOCK_SIZE, r.data, 0, r.data.length);
+        }
+    }
+    /**
+     * 重複を除いて整列した(サービス, ブロック)の一覧を取得します
+     */
+    protected long[] keys() {
+        int n = 0;
+        for ( ReadRequest r : this.requests ) {
+            n += r.count;
+        }
+        long[] keys = new long[n];
+        int p = 0;
+        for ( ReadRequest r : this.requests ) {
+            int code = r.serviceCode.getCode();
+            for ( int i = 0; i < r.count; i++ ) {
+                keys[p++] = key(code, r.addr + i);
+            }
+        }
+        Arrays.sort(keys);
+        int unique = 0;
+        for ( int i = 0; i < n; i++ ) {
+            if ( unique == 0 || keys[unique - 1] != keys[i] ) {
+                keys[unique++] = keys[i];
+            }
+        }
+        return unique == n ? keys : Arrays.copyOf(keys, unique);
+    }
+    /**
+     * 1コマンドに詰められるだけ詰めた場合の終端位置を取得します
+     *
+     * @param keys 整列済みの(サービス, ブロック)の一覧をセット
+     * @param from 先頭位置をセット
+     * @param maxBlocks 最大ブロック数をセット
+     * @return int 終端位置(このコマンドに含まない最初の位置)が戻ります
+     */
+    protected int nextFrame(long[] keys, int from, int maxBlocks) {
+        int length = 12; // データ長 + コマンドコード + IDm + サービス数 + ブロック数
+        int services = 0;
+        int last = -1;
+        int i = from;
+        for ( ; i < keys.length && i - from < maxBlocks; i++ ) {
+            int code = service(keys[i]);
+            int add = block(keys[i]) > 0xff ? 3 : 2;
+            if ( code != last ) {
+                if ( services == MAX_SERVICES ) break;
+                add += 2;
+            }
+            if ( length + add > FeliCaCommandRegistry.MAX_FRAME_SIZE ) break;
+            if ( code != last ) {
+                services++;
+                last = code;
+            }
+            length += add;
+        }
+        return i;
+    }
+    /**
+     * fromと同じサービスが続く終端位置を取得します
+     *
+     * @param keys 整列済みの(サービス, ブロック)の一覧をセット
+     * @param from 先頭位置をセット
+     * @return int 終端位置(fromと異なるサービスの最初の位置)が戻ります
+     */
+    protected int serviceEnd(long[] keys, int from) {
+        int code = service(keys[from]);
+        int i = from + 1;
+        while ( i < keys.length && service(keys[i]) == code ) {
+            i++;
+        }
+        return i;
+    }
+    /**
+     * 一覧の[from, to)を読むRead Without Encryptionコマンドを生成します
+     */
+    protected CommandPacket newPacket(IDm idm, long[] keys, int from, int to)
+            throws FeliCaException {
+        int services = 0;
+        int length = 2; // サービス数 + ブロック数
+        for ( int i = from; i < to; i++ ) {
+            if ( i == from || service(keys[i]) != service(keys[i - 1]) ) {
+                services++;
+                length += 2;
+            }
+            length += block(keys[i]) > 0xff ? 3 : 2;
+        }
+        ByteBuffer b = ByteBuffer.allocate(length);
+        b.put((byte) services);                  // サービス数
+        for ( int i = from; i < to; i++ ) {      // サービスコードリスト (little endian)
+            if ( i == from || service(keys[i]) != service(keys[i - 1]) ) {
+                int code = service(keys[i]);
+                b.put((byte) (code & 0xff)).put((byte) (code >> 8));
+            }
+        }
+        b.put((byte) (to - from));               // 同時読み込みブロック数
+        int order = -1;
+        for ( int i = from; i < to; i++ ) {      // ブロックリスト
+            if ( i == from || service(keys[i]) != service(keys[i - 1]) ) {
+                order++;
+            }
+            int block = block(keys[i]);
+            if ( block > 0xff ) {
+                b.put((byte) order).put((byte) (block & 0xff)).put((byte) (block >> 8));
+            } else {
+                b.put((byte) (0x80 | order)).put((byte) block);
+            }
+        }
+        return new CommandPacket(COMMAND_READ_WO_ENCRYPTION, idm, b.array());
+    }
+
+    private static long key(int serviceCode, int block) {
+        return (long) serviceCode << 16 | block;
+    }
+    private static int service(long key) {
+        return (int) (key >>> 16);
+    }
+    private static int block(long key) {
+        return (int) key & 0xffff;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.util.NoSuchElementException;
+
+import net.kazzz.felica.lib.FeliCaLib.AreaCode;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+
+/**
+ * Polling済みシステム領域のエリアとサービスを順に取り出す反復子を提供します
+ *
+ * <pre>
+ * Search Service Codeは必要になった時点で1件ずつ発行するため、目的のサービスが
+ * 見つかった時点で列挙を止めれば、残りのノードの通信は発生しません。
+ * 発見キャッシュ(FeliCaDiscoveryCache)に同じレイアウトが記録されている場合は通信せずに列挙し、
+ * 終端まで列挙した結果はキャッシュへ記録されます。
+ *
+ *  FeliCaServiceIterator it = tag.serviceCodeIterator();
+ *  while ( it.hasNext() ) {
+ *      ServiceCode sc = it.nextServiceCode();
+ *      if ( sc != null && sc.getCode() == 0x090f ) break;
+ *  }
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaServiceIterator {
+    protected final FeliCaTag tag;
+    protected final FeliCaDiscoveryCache cache;
+    protected final long cacheKey;
+    protected final long[] cached;    // キャッシュから列挙する場合のノード
+    protected long[] nodes = new long[16]; // 通信して取得したノード (キャッシュへの記録用)
+    protected int count;
+    protected int index;
+    protected boolean finished;
+    protected long next = FeliCaDiscoveryCache.NO_NODE;
+    /**
+     * コンストラクタ
+     *
+     * @param tag Polling済みのFeliCaTagをセット
+     * @param cache 発見キャッシュをセット (使用しない場合はnull)
+     * @param cacheKey キャッシュのキーをセット
+     */
+    public FeliCaServiceIterator(FeliCaTag tag, FeliCaDiscoveryCache cache, long cacheKey) {
+        this.tag = tag;
+        this.cache = cache;
+        this.cacheKey = cacheKey;
+        this.cached = cache != null ? cache.get(cacheKey) : null;
+    }
+    /**
+     * 次のノードがあるかを検査します
+     *
+     * @return boolean 次のノードがある場合trueが戻ります
+     * @throws FeliCaException
+     */
+    public boolean hasNext() throws FeliCaException {
+        if ( this.next != FeliCaDiscoveryCache.NO_NODE ) return true;
+        if ( this.finished ) return false;
+        if ( this.cached != null ) {
+            if ( this.index < this.cached.length ) {
+                this.next = this.cached[this.index++];
+                return true;
+            }
+            this.finished = true;
+            return false;
+        }
+        // 0番目は root areaなので1オリジンで開始する
+        byte[] bytes = this.tag.doSearchServiceCode(++this.index);
+        if ( bytes.length == 2 && !(bytes[0] == (byte)0xff && bytes[1] == (byte)0xff) ) {
+            this.next = FeliCaDiscoveryCache.serviceNode(new ServiceCode(bytes));
+        } else if ( bytes.length == 4 ) {
+            this.next = FeliCaDiscoveryCache.areaNode(new AreaCode(bytes));
+        } else {
+            // FFFF が終了コード、2 or 4 バイト以外も終了として扱います
+            this.finished = true;
+            if ( this.cache != null ) {
+                long[] result = new long[this.count];
+                System.arraycopy(this.nodes, 0, result, 0, this.count);
+                this.cache.put(this.cacheKey, result);
+            }
+            return false;
+        }
+        if ( this.count == this.nodes.length ) {
+            long[] grown = new long[this.count * 2];
+            System.arraycopy(this.nodes, 0, grown, 0, this.count);
+            this.nodes = grown;
+        }
+        this.nodes[this.count++] = this.next;
+        return true;
+    }
+    /**
+     * 次のノードを取得します
+     *
+     * @return IFeliCaByteData ServiceCode又はAreaCodeが戻ります
+     * @throws FeliCaException
+     */
+    public IFeliCaByteData next() throws FeliCaException {
+        if ( !this.hasNext() ) throw new NoSuchElementException();
+        long node = this.next;
+        this.next = FeliCaDiscoveryCache.NO_NODE;
+        return FeliCaDiscoveryCache.isArea(node)
+            ? FeliCaDiscoveryCache.toAreaCode(node) : FeliCaDiscoveryCache.toServiceCode(node);
+    }
+    /**
+     * 次のサービスコードを取得します
+     *
+     * 途中のエリアは読み飛ばします
+     * @return ServiceCode サービスコードが戻ります (残りのノードにサービスが無い場合はnull)
+     * @throws FeliCaException
+     */
+    public ServiceCode nextServiceCode() throws FeliCaException {
+        while ( this.hasNext() ) {
+            IFeliCaByteData node = this.next();
+            if ( node instanceof ServiceCode ) return (ServiceCode) node;
+        }
+        return null;
+    }
+    /**
+     * 列挙がキャッシュから行われているかを検査します
+     * @return boolean キャッシュから列挙している場合trueが戻ります
+     */
+    public boolean isCached() {
+        return this.cached != null;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import net.kazzz.felica.lib.Util;
+
+/**
+ * カードがエラーのステータスフラグを返した場合の例外クラスを提供します
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaStatusException extends FeliCaException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusFlag1;
+    private final int statusFlag2;
+    /**
+     * コンストラクタ
+     * @param message メッセージをセット
+     * @param statusFlag1 statusFlag1をセット
+     * @param statusFlag2 statusFlag2をセット
+     */
+    public FeliCaStatusException(String message, int statusFlag1, int statusFlag2) {
+        super(message + ". statusFlag1 : " + Util.getHexString((byte) statusFlag1) 
+                + " statusFlag2 : " + Util.getHexString((byte) statusFlag2));
+        this.statusFlag1 = statusFlag1;
+        this.statusFlag2 = statusFlag2;
+    }
+    /**
+     * statusFlag1を取得します
+     * @return int statusFlag1が戻ります
+     */
+    public int getStatusFlag1() {
+        return this.statusFlag1;
+    }
+    /**
+     * statusFlag2を取得します
+     * @return int statusFlag2が戻ります
+     */
+    public int getStatusFlag2() {
+        return this.statusFlag2;
+    }
+}
@@ -13,9 +13,15 @@ package net.kazzz.felica;
 
 import static net.kazzz.felica.lib.FeliCaLib.COMMAND_POLLING;
 import static net.kazzz.felica.lib.FeliCaLib.COMMAND_READ_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_REQUEST_RESPONSE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_REQUEST_SERVICE;
 import static net.kazzz.felica.lib.FeliCaLib.COMMAND_REQUEST_SYSTEMCODE;
 import static net.kazzz.felica.lib.FeliCaLib.COMMAND_SEARCH_SERVICECODE;
 import static net.kazzz.felica.lib.FeliCaLib.COMMAND_WRITE_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.KEY_VERSION_NONE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_REQUEST_SERVICE;
+import static net.kazzz.felica.lib.FeliCaLib.STATUSFLAG2_ERROR_BLOCK_COUNT;
+import static net.kazzz.felica.lib.FeliCaLib.SYSTEMCODE_ANY;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -24,14 +30,22 @@ import java.util.List;
 
 import net.kazzz.felica.command.PollingResponse;
 import net.kazzz.felica.command.ReadResponse;
+import net.kazzz.felica.command.ReadResponseView;
 import net.kazzz.felica.command.WriteResponse;
+import net.kazzz.felica.command.WriteResponseView;
+import net.kazzz.felica.command.WriteResult;
+import net.kazzz.felica.lib.FeliCaCommandRegistry;
 import net.kazzz.felica.lib.FeliCaLib;
+import net.kazzz.felica.lib.FeliCaLib.AreaCode;
 import net.kazzz.felica.lib.FeliCaLib.CommandPacket;
 import net.kazzz.felica.lib.FeliCaLib.CommandResponse;
 import net.kazzz.felica.lib.FeliCaLib.IDm;
 import net.kazzz.felica.lib.FeliCaLib.PMm;
 import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
 import net.kazzz.felica.lib.FeliCaLib.SystemCode;
+import net.kazzz.felica.lib.FeliCaRetryHandler;
+import net.kazzz.felica.lib.FeliCaSession;
+import net.kazzz.felica.lib.IFeliCaTransport;
 import net.kazzz.nfc.NfcException;
 import net.kazzz.nfc.NfcTag;
 import android.nfc.Tag;
@@ -60,9 +74,27 @@ public class FeliCaTag extends NfcTag {
             }
         };
 
+    /** 1コマンドで読み込む既定の最大ブロック数 (応答フレーム長255バイトに収まる上限) */
+    public static final int DEFAULT_MAX_READ_BLOCKS = 15;
+    /** 1コマンドで書き込む既定の最大ブロック数 (コマンドフレーム長255バイトに収まる上限) */
+    public static final int DEFAULT_MAX_WRITE_BLOCKS = 13;
+    /** Request Serviceの1コマンドで問い合わせる最大ノード数 */
+    public static final int MAX_REQUEST_SERVICE_NODES = 32;
+
     protected Tag nfcTag;
     protected IDm idm;
     protected PMm pmm;
+    protected IFeliCaTransport transport;
+    protected boolean ownsTransport = true; // falseの場合はclose()でトランスポートを閉じません (select()で取得したタグ)
+    protected FeliCaRetryHandler retryHandler = new FeliCaRetryHandler();
+    protected int systemCode = SYSTEMCODE_ANY; // 再ポーリングに使用するシステムコード
+    protected int cardSystemCode = FeliCaCandidate.SYSTEMCODE_UNKNOWN; // Pollingの応答に含まれていたカードのシステムコード
+    protected int maxReadBlocks = DEFAULT_MAX_READ_BLOCKS; // 1コマンドで読み込むブロック数の上限
+    protected int maxWriteBlocks = DEFAULT_MAX_WRITE_BLOCKS; // 1コマンドで書き込むブロック数の上限
+    protected FeliCaDiscoveryCache discoveryCache; // サービス列挙の結果を記録するキャッシュ
+    protected FeliCaBlockCache blockCache; // 読み込んだブロックのキャッシュ
+    protected int[] systemCodes;  // resolveSystems()で取得したシステムコード (システム番号順)
+    protected long[] systemIdms;  // システム毎のIDm
     /**
      * コンストラクタ
      * @param in 入力するパーセル化オブジェクトをセット
@@ -78,6 +110,26 @@ public class FeliCaTag extends NfcTag {
     public FeliCaTag(Parcelable nfcTag) {
         this.nfcTag =  (Tag)nfcTag;
     }
+    /**
+     * コンストラクタ
+     * 
+     * @param transport コマンドの送受信に使用するトランスポートをセット
+     */
+    public FeliCaTag(IFeliCaTransport transport) {
+        this.transport = transport;
+    }
+    /**
+     * コンストラクタ
+     * 
+     * @param transport コマンドの送受信に使用するトランスポートをセット
+     * @param idm FeliCa IDmをセット
+     * @param pmm FeliCa PMmをセット
+     */
+    public FeliCaTag(IFeliCaTransport transport, IDm idm, PMm pmm) {
+        this.transport = transport;
+        this.idm = idm;
+        this.pmm = pmm;
+    }
     /**
      * コンストラクタ
      * 
@@ -119,7 +171,7 @@ public class FeliCaTag extends NfcTag {
      * @throws FeliCaException
      */
     public byte[] polling(int systemCode) throws FeliCaException {
-        if ( this.nfcTag == null ) {
+        if ( this.nfcTag == null && this.transport == null ) {
             throw new FeliCaException("tagService is null. no polling execution");
         }
         CommandPacket polling = 
@@ -129,12 +181,125 @@ public class FeliCaTag extends NfcTag {
                     , (byte) (systemCode & 0xff)
                     , (byte) 0x01              //　システムコードリクエスト
                     , (byte) 0x00});           // タイムスロット}; 
-        CommandResponse r = FeliCaLib.execute(this.nfcTag, polling);
+        this.systemCode = systemCode;
+        CommandResponse r = this.execute(polling);
         PollingResponse pr = new PollingResponse(r);
         this.idm = pr.getIDm();
         this.pmm = pr.getPMm();
+        this.cardSystemCode = pr.getSystemCode();
+        if ( this.systemIdms != null && cardId(this.idm.longValue()) != cardId(this.systemIdms[0]) ) {
+            this.systemCodes = null; // 別のカード
+            this.systemIdms = null;
+        }
         return pr.getBytes();
     }
+    /**
+     * 複数のタイムスロットでポーリングし、フィールド内の全てのカードを取得します
+     * 
+     * 応答したカードはselect()で個別のタグとして扱えます。このタグのIDmは変更しません
+     * @param systemCode 対象のシステムコードをセットします
+     * @param slots タイムスロット数 (1, 2, 4, 8, 16)をセットします
+     * @return List<FeliCaCandidate> 応答したカードの一覧が戻ります
+     * @throws FeliCaException
+     */
+    public List<FeliCaCandidate> pollingAll(int systemCode, int slots) throws FeliCaException {
+        if ( this.nfcTag == null && this.transport == null ) {
+            throw new FeliCaException("tagService is null. no polling execution");
+        }
+        return FeliCaCandidate.poll(this.getTransport(), systemCode, slots);
+    }
+    /**
+     * pollingAll()で取得したカードを対象とするタグを取得します
+     * 
+     * 取得したタグはこのタグとトランスポート、再送ハンドラ、発見キャッシュを共有します。
+     * 共有したトランスポートはこのタグのclose()で閉じます (取得したタグのclose()では閉じません)
+     * @param candidate 対象のカードをセットします
+     * @return FeliCaTag 対象のカードを扱うタグが戻ります
+     */
+    public FeliCaTag select(FeliCaCandidate candidate) {
+        FeliCaTag tag = new FeliCaTag(this.getTransport(), candidate.getIDm(), candidate.getPMm());
+        tag.nfcTag = this.nfcTag;
+        tag.ownsTransport = false;
+        tag.retryHandler = this.retryHandler;
+        tag.discoveryCache = this.discoveryCache;
+        tag.blockCache = this.blockCache;
+        tag.maxReadBlocks = this.maxReadBlocks;
+        tag.maxWriteBlocks = this.maxWriteBlocks;
+        if ( candidate.getSystemCode() != FeliCaCandidate.SYSTEMCODE_UNKNOWN ) {
+            tag.systemCode = candidate.getSystemCode();
+        }
+        tag.cardSystemCode = candidate.getSystemCode();
+        return tag;
+    }
+    /**
+     * カードの全てのシステムとそのIDmを取得し、キャッシュします
+     * 
+     * <pre>
+     * SYSTEMCODE_ANYでPollingした後、Request System Codeでシステムの一覧を取得します。
+     * 各システムのIDmは、IDmの先頭バイトの上位4ビットをシステム番号(Request System Codeの応答順)に
+     * 置き換えたものとして求めるため(JIS X 6319-4)、システム毎のPollingは行いません。
+     * </pre>
+     * 
+     * @return SystemCode[] システムの一覧 (システム番号順)が戻ります
+     * @throws FeliCaException
+     */
+    public SystemCode[] resolveSystems() throws FeliCaException {
+        this.polling(SYSTEMCODE_ANY);
+        SystemCode[] systems = this.getSystemCodeList();
+        long base = cardId(this.idm.longValue());
+        int[] codes = new int[systems.length];
+        long[] idms = new long[systems.length];
+        for ( int i = 0; i < systems.length; i++ ) {
+            codes[i] = systems[i].getCode();
+            idms[i] = base | (long) i << 60;
+        }
+        this.systemCodes = codes;
+        this.systemIdms = idms;
+        this.systemCode = codes.length > 0 ? codes[0] : SYSTEMCODE_ANY;
+        return systems;
+    }
+    /**
+     * 以降のコマンドの対象となるシステムを切り替えます
+     * 
+     * resolveSystems()でキャッシュしたIDmを使用するため、Pollingは行いません
+     * (キャッシュが無い場合は最初にresolveSystems()を実行します)
+     * @param systemCode 対象のシステムコードをセット
+     * @return IDm 対象システムのIDmが戻ります
+     * @throws FeliCaException カードに該当するシステムが無い場合にスローされます
+     */
+    public IDm selectSystem(int systemCode) throws FeliCaException {
+        if ( this.systemIdms == null ) {
+            this.resolveSystems();
+        }
+        for ( int i = 0; i < this.systemCodes.length; i++ ) {
+            if ( this.systemCodes[i] == systemCode ) {
+                this.idm = new IDm(this.systemIdms[i]);
+                this.systemCode = systemCode; // 再ポーリングも同じシステムを対象にします
+                this.cardSystemCode = systemCode;
+                return this.idm;
+            }
+        }
+        throw new FeliCaException("system not found : " + Integer.toHexString(systemCode));
+    }
+    /**
+     * キャッシュしたシステムのIDmを取得します
+     * 
+     * @param systemCode システムコードをセット
+     * @return IDm システムのIDmが戻ります (キャッシュに無い場合はnull)
+     */
+    public IDm getSystemIDm(int systemCode) {
+        if ( this.systemIdms == null ) return null;
+        for ( int i = 0; i < this.systemCodes.length; i++ ) {
+            if ( this.systemCodes[i] == systemCode ) return new IDm(this.systemIdms[i]);
+        }
+        return null;
+    }
+    /**
+     * IDmからシステム番号(先頭バイトの上位4ビット)を除いた値を取得します
+     */
+    private static long cardId(long idm) {
+        return idm & ~(0xfL << 60);
+    }
     /**
      * カードデータをポーリングしてIDmを取得します
      * 
@@ -171,7 +336,7 @@ public class FeliCaTag extends NfcTag {
     public final SystemCode[] getSystemCodeList() throws FeliCaException {
         //request systemCode 
         CommandPacket reqSystemCode = new CommandPacket(COMMAND_REQUEST_SYSTEMCODE, idm);
-        CommandResponse r = FeliCaLib.execute(this.nfcTag, reqSystemCode);
+        CommandResponse r = this.execute(reqSystemCode);
         byte[] retBytes = r.getBytes();
         int num = (int)retBytes[10];
         //Log.d(TAG, "Num SystemCode: " + num);
@@ -188,19 +353,165 @@ public class FeliCaTag extends NfcTag {
      * @throws NfcException
      */
     public ServiceCode[] getServiceCodeList() throws FeliCaException {
-        int index = 1; // 0番目は root areaなので1オリジンで開始する
         List<ServiceCode> serviceCodeList = new ArrayList<ServiceCode>();
-        while (true) {
-            byte[] bytes = doSearchServiceCode(index); // 1件1件 通信して聞き出します。
-            if (bytes.length != 2 && bytes.length != 4) break; // 2 or 4 バイトじゃない場合は、とりあえず終了しておきます。正しい判定ではないかもしれません。
-            if (bytes.length == 2) { // 2バイトは ServiceCode として扱っています。
-                if (bytes[0] == (byte)0xff && bytes[1] == (byte)0xff) break; // FFFF が終了コードのようです
-                serviceCodeList.add(new ServiceCode(bytes));
-            }
-            index++;
+        FeliCaServiceIterator it = this.serviceCodeIterator();
+        for ( ServiceCode sc = it.nextServiceCode(); sc != null; sc = it.nextServiceCode() ) {
+            serviceCodeList.add(sc);
         }
         return serviceCodeList.toArray(new ServiceCode[serviceCodeList.size()]);
     }
+    /**
+     * Polling済みシステム領域のエリアの一覧を取得します。
+     * 
+     * @return AreaCode[] 検出された AreaCodeの配列 (root areaは含みません)
+     * @throws FeliCaException
+     */
+    public AreaCode[] getAreaCodeList() throws FeliCaException {
+        List<AreaCode> areaCodeList = new ArrayList<AreaCode>();
+        FeliCaServiceIterator it = this.serviceCodeIterator();
+        while ( it.hasNext() ) {
+            IFeliCaByteData node = it.next();
+            if ( node instanceof AreaCode ) {
+                areaCodeList.add((AreaCode) node);
+            }
+        }
+        return areaCodeList.toArray(new AreaCode[areaCodeList.size()]);
+    }
+    /**
+     * Polling済みシステム領域のエリアとサービスの階層を索引として取得します
+     * 
+     * @return FeliCaAreaTree エリアとサービスの索引が戻ります
+     * @throws FeliCaException
+     */
+    public FeliCaAreaTree getAreaTree() throws FeliCaException {
+        return FeliCaAreaTree.build(this.serviceCodeIterator());
+    }
+    /**
+     * Polling済みシステム領域のエリアとサービスを順に取り出す反復子を取得します
+     * 
+     * 必要な分だけ列挙できます。発見キャッシュに記録がある場合は通信しません
+     * (カードを区別するキーを生成できない場合は発見キャッシュを使用しません)
+     * @return FeliCaServiceIterator 反復子が戻ります
+     */
+    public FeliCaServiceIterator serviceCodeIterator() {
+        FeliCaDiscoveryCache cache = this.discoveryCache;
+        if ( cache != null && !cache.isKeyable(this.idm, this.pmm, this.cardSystemCode) ) {
+            cache = null;
+        }
+        long key = cache != null ? cache.keyOf(this.idm, this.pmm, this.cardSystemCode) : 0;
+        return new FeliCaServiceIterator(this, cache, key);
+    }
+    /**
+     * ブロックキャッシュを取得します
+     * @return FeliCaBlockCache ブロックキャッシュが戻ります (使用しない場合はnull)
+     */
+    public FeliCaBlockCache getBlockCache() {
+        return this.blockCache;
+    }
+    /**
+     * ブロックキャッシュを設定します
+     * 
+     * 設定するとreadWithoutEncryption(ServiceCode, int, int)はキャッシュにあるブロックを通信せずに返し、
+     * 書き込みは対象サービスのキャッシュを無効にします。同じキャッシュを複数のタグで共有できます
+     * @param blockCache ブロックキャッシュをセット (使用しない場合はnull)
+     */
+    public void setBlockCache(FeliCaBlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+    /**
+     * 発見キャッシュを取得します
+     * @return FeliCaDiscoveryCache 発見キャッシュが戻ります (使用しない場合はnull)
+     */
+    public FeliCaDiscoveryCache getDiscoveryCache() {
+        return this.discoveryCache;
+    }
+    /**
+     * 発見キャッシュを設定します
+     * 
+     * 同じキャッシュを複数のタグで共有できます
+     * @param discoveryCache 発見キャッシュをセット (使用しない場合はnull)
+     */
+    public void setDiscoveryCache(FeliCaDiscoveryCache discoveryCache) {
+        this.discoveryCache = discoveryCache;
+    }
+    /**
+     * Request Responseでカードが応答するかを確認します
+     * 
+     * <pre>
+     * IDmだけを送る最小のコマンドで、Pollingし直さずにカードの存在を確認できます。
+     * 存在確認が目的のため、再送ハンドラを経由せず1回だけ送信します。
+     * </pre>
+     * 
+     * @return int カードの現在のモード(0～3)が戻ります (応答しない場合は-1)
+     * @throws FeliCaException
+     */
+    public int requestResponse() throws FeliCaException {
+        if ( this.nfcTag == null && this.transport == null ) {
+            throw new FeliCaException("tagService is null. no request execution");
+        }
+        CommandPacket request = new CommandPacket(COMMAND_REQUEST_RESPONSE, idm);
+        IFeliCaTransport t = this.getTransport();
+        byte[] result;
+        try {
+            t.setTimeout(FeliCaLib.getTimeout(request, this.pmm));
+            result = t.transceive(request);
+        } catch (NfcException e) {
+            return -1;
+        }
+        if ( FeliCaRetryHandler.classify(request, result) != null || result.length < 11 ) {
+            return -1;
+        }
+        return result[10] & 0xff;
+    }
+    /**
+     * Request Serviceでエリア又はサービスの鍵バージョンを取得します
+     * 
+     * <pre>
+     * 32ノードまでを1コマンドで問い合わせます。それを超える場合は32ノード毎に分割して実行します。
+     * 存在しないノードの鍵バージョンは KEY_VERSION_NONE(0xFFFF)になります。
+     * </pre>
+     * 
+     * @param nodeCodes エリアコード又はサービスコード(例: 0x090f)をセット
+     * @return int[] nodeCodesと同じ順の鍵バージョンが戻ります
+     * @throws FeliCaException
+     */
+    public int[] requestService(int... nodeCodes) throws FeliCaException {
+        int[] keyVersions = new int[nodeCodes.length];
+        for ( int from = 0; from < nodeCodes.length; from += MAX_REQUEST_SERVICE_NODES ) {
+            int n = Math.min(MAX_REQUEST_SERVICE_NODES, nodeCodes.length - from);
+            byte[] data = new byte[1 + n * 2];
+            data[0] = (byte) n; // ノード数
+            for ( int i = 0; i < n; i++ ) {
+                data[1 + i * 2] = (byte) (nodeCodes[from + i] & 0xff); // ノードコード (little endian)
+                data[2 + i * 2] = (byte) (nodeCodes[from + i] >> 8);
+            }
+            CommandResponse r = this.execute(new CommandPacket(COMMAND_REQUEST_SERVICE, idm, data));
+            byte[] bytes = r.getBytes();
+            if ( bytes == null || bytes.length < 11 || bytes[1] != RESPONSE_REQUEST_SERVICE
+                    || (bytes[10] & 0xff) != n || bytes.length < 11 + n * 2 ) {
+                throw new FeliCaException("illegal Request Service response");
+            }
+            for ( int i = 0; i < n; i++ ) {
+                keyVersions[from + i] = (bytes[11 + i * 2] & 0xff) | (bytes[12 + i * 2] & 0xff) << 8;
+            }
+        }
+        return keyVersions;
+    }
+    /**
+     * エリア又はサービスが存在するかをまとめて検査します
+     * 
+     * @param nodeCodes エリアコード又はサービスコード(例: 0x090f)をセット
+     * @return boolean[] nodeCodesと同じ順で、存在する場合はtrueが戻ります
+     * @throws FeliCaException
+     */
+    public boolean[] exists(int... nodeCodes) throws FeliCaException {
+        int[] keyVersions = this.requestService(nodeCodes);
+        boolean[] result = new boolean[keyVersions.length];
+        for ( int i = 0; i < keyVersions.length; i++ ) {
+            result[i] = keyVersions[i] != KEY_VERSION_NONE;
+        }
+        return result;
+    }
     /**
      * COMMAND_SEARCH_SERVICECODE を実行します。
      * 参考: http://wiki.osdev.info/index.php?PaSoRi%2FRC-S320#content_1_25
@@ -212,7 +523,7 @@ public class FeliCaTag extends NfcTag {
         CommandPacket reqServiceCode =
             new CommandPacket(COMMAND_SEARCH_SERVICECODE, idm
                     , new byte[]{(byte)(index & 0xff), (byte)(index >> 8)});
-        CommandResponse r = FeliCaLib.execute(this.nfcTag, reqServiceCode);
+        CommandResponse r = this.execute(reqServiceCode);
         byte[] bytes = r.getBytes();
         if (bytes == null || bytes.length <= 0 || bytes[1] != (byte)0x0b) { // 正常応答かどうか
             throw new FeliCaException("ResponseCode is not 0x0b");
@@ -229,20 +540,176 @@ public class FeliCaTag extends NfcTag {
      */
     public ReadResponse readWithoutEncryption(ServiceCode serviceCode,
             byte addr) throws FeliCaException {
-        if ( this.nfcTag == null ) {
+        CommandResponse r = this.execute(this.newSingleReadPacket(serviceCode, addr));
+        return new ReadResponse(r); 
+    }
+    /**
+     * 認証不要領域のデータを読み込み、応答フレームをビューで参照します
+     * 
+     * ReadResponseと異なり、IDmやブロックデータを複製しません
+     * 
+     * @param serviceCode サービスコードをセット
+     * @param addr 読み込むブロックのアドレス (0オリジン)をセット
+     * @param view 応答フレームを参照させるビューをセット (使い回しできます)
+     * @return ReadResponseView 応答フレームを参照したビューが戻ります
+     * @throws FeliCaException
+     */
+    public ReadResponseView readWithoutEncryption(ServiceCode serviceCode,
+            byte addr, ReadResponseView view) throws FeliCaException {
+        view.wrap(this.executeRaw(this.newSingleReadPacket(serviceCode, addr)));
+        return view;
+    }
+    /**
+     * 1ブロックを読むRead Without Encryptionコマンドを生成します
+     * 
+     * @param serviceCode サービスコードをセット
+     * @param addr 読み込むブロックのアドレス (0オリジン)をセット
+     * @return CommandPacket 生成したコマンドパケットが戻ります
+     * @throws FeliCaException
+     */
+    private CommandPacket newSingleReadPacket(ServiceCode serviceCode, byte addr) 
+            throws FeliCaException {
+        if ( this.nfcTag == null && this.transport == null ) {
             throw new FeliCaException("tagService is null. no read execution");
         }
         // read without encryption
         byte[] bytes = serviceCode.getBytes();
-        CommandPacket readWoEncrypt = 
-            new CommandPacket(COMMAND_READ_WO_ENCRYPTION, idm
+        return new CommandPacket(COMMAND_READ_WO_ENCRYPTION, idm
                 ,  new byte[]{(byte) 0x01         // サービス数
-                    , (byte) bytes[0]             // サービスコード (little endian)
-                    , (byte) bytes[1]
+                    , bytes[0]                    // サービスコード (little endian)
+                    , bytes[1]
                     , (byte) 0x01                 // 同時読み込みブロック数
                     , (byte) 0x80, addr });       // ブロックリスト
-        CommandResponse r = FeliCaLib.execute(this.nfcTag, readWoEncrypt);
-        return new ReadResponse(r); 
+    }
+    /**
+     * 認証不要領域の連続したブロックをまとめて読み込みます
+     * 
+     * <pre>
+     * 1コマンドに最大ブロック数(getMaxReadBlocks())までのブロックリストエレメントを詰め、
+     * 範囲を最小のコマンド数に分割して読み込みます。
+     * カードがブロック数の不正(ステータスフラグ2 = 0xA2)を返した場合は上限を半分にして読み直し、
+     * 以降はその上限を使用します。
+     * </pre>
+     * 
+     * @param serviceCode サービスコードをセット
+     * @param addr 読み込む先頭ブロックのアドレス (0オリジン)をセット
+     * @param count 読み込むブロック数をセット
+     * @return byte[] 読み込んだブロックを連結したデータ (count * 16バイト)が戻ります
+     * @throws FeliCaStatusException カードがエラーのステータスフラグを返した場合にスローされます
+     * @throws FeliCaException
+     */
+    public byte[] readWithoutEncryption(ServiceCode serviceCode,
+            int addr, int count) throws FeliCaException {
+        if ( this.nfcTag == null && this.transport == null ) {
+            throw new FeliCaException("tagService is null. no read execution");
+        }
+        if ( addr < 0 || count < 0 || addr + count > 0x10000 ) {
+            throw new IllegalArgumentException("addr : " + addr + " count : " + count);
+        }
+        byte[] result = new byte[count * ReadResponseView.BLOCK_SIZE];
+        FeliCaBlockCache cache = this.blockCache;
+        if ( cache == null ) {
+            this.readBlocks(serviceCode, addr, count, result, 0);
+            return result;
+        }
+        //キャッシュに無い連続したブロックだけを読み込みます
+        boolean[] cached = cache.get(this.idm, serviceCode, addr, result, 0, count);
+        for ( int i = 0; i < count; ) {
+            if ( cached[i] ) {
+                i++;
+                continue;
+            }
+            int j = i;
+            while ( j < count && !cached[j] ) j++;
+            int offset = i * ReadResponseView.BLOCK_SIZE;
+            this.readBlocks(serviceCode, addr + i, j - i, result, offset);
+            cache.put(this.idm, serviceCode, addr + i, result, offset, j - i);
+            i = j;
+        }
+        return result;
+    }
+    /**
+     * 連続したブロックをコマンドに分割して読み込みます
+     * 
+     * @param serviceCode サービスコードをセット
+     * @param addr 読み込む先頭ブロックのアドレス (0オリジン)をセット
+     * @param count 読み込むブロック数をセット
+     * @param dest 読み込んだデータをセットする配列をセット
+     * @param offset dest中の位置をセット
+     * @throws FeliCaException
+     */
+    protected void readBlocks(ServiceCode serviceCode, int addr, int count
+            , byte[] dest, int offset) throws FeliCaException {
+        ReadResponseView view = new ReadResponseView();
+        int done = 0;
+        while ( done < count ) {
+            int n = Math.min(count - done, this.maxReadBlocks);
+            view.wrap(this.executeRaw(this.newReadPacket(serviceCode, addr + done, n)));
+            if ( view.getStatusFlag1() != 0 ) {
+                if ( view.getStatusFlag2() == STATUSFLAG2_ERROR_BLOCK_COUNT && n > 1 ) {
+                    this.maxReadBlocks = n / 2;
+                    continue;
+                }
+                throw new FeliCaStatusException("read failed"
+                        , view.getStatusFlag1(), view.getStatusFlag2());
+            }
+            if ( view.getBlockCount() != n ) {
+                throw new FeliCaException("read failed. expected " + n 
+                        + " blocks but " + view.getBlockCount());
+            }
+            for ( int i = 0; i < n; i++ ) {
+                view.copyBlock(i, dest, offset + (done + i) * ReadResponseView.BLOCK_SIZE);
+            }
+            done += n;
+        }
+    }
+    /**
+     * 1つのサービスの連続したブロックを読むRead Without Encryptionコマンドを生成します
+     * 
+     * ブロック番号が255を超える場合は3バイトのブロックリストエレメントを使用します
+     * @param serviceCode サービスコードをセット
+     * @param addr 先頭ブロックのアドレス (0オリジン)をセット
+     * @param count ブロック数をセット
+     * @return CommandPacket 生成したコマンドパケットが戻ります
+     * @throws FeliCaException
+     */
+    protected CommandPacket newReadPacket(ServiceCode serviceCode, int addr, int count) 
+            throws FeliCaException {
+        int length = 4; // サービス数 + サービスコード + ブロック数
+        for ( int i = 0; i < count; i++ ) {
+            length += addr + i > 0xff ? 3 : 2;
+        }
+        ByteBuffer b = ByteBuffer.allocate(length);
+        b.put((byte) 0x01);                       // サービス数
+        serviceCode.writeTo(b);                   // サービスコード (little endian)
+        b.put((byte) count);                      // 同時読み込みブロック数
+        for ( int i = 0; i < count; i++ ) {       // ブロックリスト
+            int block = addr + i;
+            if ( block > 0xff ) {
+                b.put((byte) 0x00).put((byte) (block & 0xff)).put((byte) (block >> 8));
+            } else {
+                b.put((byte) 0x80).put((byte) block);
+            }
+        }
+        return new CommandPacket(COMMAND_READ_WO_ENCRYPTION, idm, b.array());
+    }
+    /**
+     * 1コマンドで読み込む最大ブロック数を取得します
+     * @return int 最大ブロック数が戻ります
+     */
+    public int getMaxReadBlocks() {
+        return this.maxReadBlocks;
+    }
+    /**
+     * 1コマンドで読み込む最大ブロック数を設定します
+     * 
+     * @param maxReadBlocks 最大ブロック数 (1～15)をセット
+     */
+    public void setMaxReadBlocks(int maxReadBlocks) {
+        if ( maxReadBlocks < 1 || maxReadBlocks > DEFAULT_MAX_READ_BLOCKS ) {
+            throw new IllegalArgumentException("maxReadBlocks : " + maxReadBlocks);
+        }
+        this.maxReadBlocks = maxReadBlocks;
     }
     /**
      * 認証不要領域のデータを書き込みます
@@ -255,9 +722,12 @@ public class FeliCaTag extends NfcTag {
      */
     public WriteResponse writeWithoutEncryption(ServiceCode serviceCode,
             byte addr, byte[] buff) throws FeliCaException {
-        if ( this.nfcTag == null ) {
+        if ( this.nfcTag == null && this.transport == null ) {
             throw new FeliCaException("tagService is null. no write execution");
         }
+        if ( buff.length > 16 ) {
+            throw new IllegalArgumentException("block data must be 16 bytes or less : " + buff.length);
+        }
         // write without encryption
         byte[] bytes = serviceCode.getBytes();
         ByteBuffer b =  ByteBuffer.allocate(22); // コマンド 6バイト + 書きだすデータ 16バイト
@@ -267,12 +737,235 @@ public class FeliCaTag extends NfcTag {
                 , (byte) 0x01                    // 同時書き込みブロック数
                 , (byte) 0x80, (byte) addr       // ブロックリスト 0x80は (2バイトブロックエレメント+ランダムサービス)
                 });
-        b.put(buff, 0, buff.length > 16 ? 16 : buff.length); //書き出すデータ  (一度につき16バイト)
+        b.put(buff); //書き出すデータ  (一度につき16バイト)
+        if ( this.blockCache != null ) {
+            this.blockCache.invalidate(this.idm, serviceCode);
+        }
         CommandPacket writeWoEncrypt = 
             new CommandPacket(COMMAND_WRITE_WO_ENCRYPTION, idm, b.array());
-        CommandResponse r = FeliCaLib.execute(this.nfcTag, writeWoEncrypt);
+        CommandResponse r = this.execute(writeWoEncrypt);
         return new WriteResponse(r);
     }
+    /**
+     * 認証不要領域の連続したブロックへ任意の長さのデータをまとめて書き込みます
+     * 
+     * <pre>
+     * データは16バイト毎にブロックへ割り当てられ、最後のブロックの余りは0で埋められます。
+     * 1コマンドに最大ブロック数(getMaxWriteBlocks())まで詰めて書き込みます。
+     * </pre>
+     * 
+     * @param serviceCode サービスコードをセット
+     * @param addr 書き込む先頭ブロックのアドレス(0オリジン)をセット
+     * @param data 書きこむデータをセット
+     * @return WriteResult ブロック毎の書き込み結果が戻ります
+     * @throws FeliCaException
+     */
+    public WriteResult writeWithoutEncryption(ServiceCode serviceCode,
+            int addr, byte[] data) throws FeliCaException {
+        int count = (data.length + 15) / 16;
+        if ( addr < 0 || addr + count > 0x10000 ) {
+            throw new IllegalArgumentException("addr : " + addr + " count : " + count);
+        }
+        int[] blocks = new int[count];
+        for ( int i = 0; i < count; i++ ) {
+            blocks[i] = addr + i;
+        }
+        byte[] payload = data.length == count * 16 ? data : Arrays.copyOf(data, count * 16);
+        return this.writeBlocks(serviceCode, blocks, payload);
+    }
+    /**
+     * 認証不要領域の任意のブロックへデータをまとめて書き込みます
+     * 
+     * @param serviceCode サービスコードをセット
+     * @param blocks 書き込むブロックのアドレス(0オリジン)の配列をセット
+     * @param data 各ブロックへ書きこむデータ(16バイト以下、不足分は0で埋めます)の配列をセット
+     * @return WriteResult ブロック毎の書き込み結果が戻ります
+     * @throws FeliCaException
+     */
+    public WriteResult writeWithoutEncryption(ServiceCode serviceCode,
+            int[] blocks, byte[][] data) throws FeliCaException {
+        if ( blocks.length != data.length ) {
+            throw new IllegalArgumentException("blocks and data length mismatch");
+        }
+        byte[] payload = new byte[blocks.length * 16];
+        for ( int i = 0; i < blocks.length; i++ ) {
+            if ( blocks[i] < 0 || blocks[i] > 0xffff ) {
+                throw new IllegalArgumentException("block : " + blocks[i]);
+            }
+            if ( data[i].length > 16 ) {
+                throw new IllegalArgumentException("block data must be 16 bytes or less : " + data[i].length);
+            }
+            System.arraycopy(data[i], 0, payload, i * 16, data[i].length);
+        }
+        return this.writeBlocks(serviceCode, blocks.clone(), payload);
+    }
+    /**
+     * ブロックをコマンドに分割して書き込みます
+     * 
+     * <pre>
+     * カードがブロック数の不正(0xA2)を返した場合は上限を半分にして書き直します。
+     * それ以外のエラーが返された場合は、以降のブロックを書き込まずに終了します。
+     * </pre>
+     * 
+     * @param serviceCode サービスコードをセット
+     * @param blocks 書き込むブロックのアドレスの配列をセット
+     * @param payload 書き込むデータ (blocks.length * 16バイト)をセット
+     * @return WriteResult ブロック毎の書き込み結果が戻ります
+     * @throws FeliCaException
+     */
+    protected WriteResult writeBlocks(ServiceCode serviceCode, int[] blocks, byte[] payload) 
+            throws FeliCaException {
+        if ( this.nfcTag == null && this.transport == null ) {
+            throw new FeliCaException("tagService is null. no write execution");
+        }
+        if ( this.blockCache != null ) {
+            this.blockCache.invalidate(this.idm, serviceCode);
+        }
+        WriteResult result = new WriteResult(blocks);
+        WriteResponseView view = new WriteResponseView();
+        for ( int from = 0; from < blocks.length; ) {
+            int to = nextWriteFrame(blocks, from, this.maxWriteBlocks);
+            view.wrap(this.executeRaw(newWritePacket(idm, serviceCode, blocks, payload, from, to)));
+            if ( view.getStatusFlag1() != 0 ) {
+                if ( view.getStatusFlag2() == STATUSFLAG2_ERROR_BLOCK_COUNT && to - from > 1 ) {
+                    this.maxWriteBlocks = (to - from) / 2;
+                    continue;
+                }
+                result.setStatus(from, to, view.getStatusFlag1(), view.getStatusFlag2());
+                break;
+            }
+            result.setStatus(from, to, 0, 0);
+            from = to;
+        }
+        return result;
+    }
+    /**
+     * 1コマンドに詰められるだけ詰めた場合の終端位置を取得します
+     * 
+     * @param blocks 書き込むブロックのアドレスの配列をセット
+     * @param from 先頭位置をセット
+     * @param maxBlocks 最大ブロック数をセット
+     * @return int 終端位置(このコマンドに含まない最初の位置)が戻ります
+     */
+    protected static int nextWriteFrame(int[] blocks, int from, int maxBlocks) {
+        int length = 14; // データ長 + コマンドコード + IDm + サービス数 + サービスコード + ブロック数
+        int i = from;
+        for ( ; i < blocks.length && i - from < maxBlocks; i++ ) {
+            length += (blocks[i] > 0xff ? 3 : 2) + 16;
+            if ( length > FeliCaCommandRegistry.MAX_FRAME_SIZE ) break;
+        }
+        return i;
+    }
+    /**
+     * 1つのサービスのブロック[from, to)へ書き込むWrite Without Encryptionコマンドを生成します
+     * 
+     * @param idm 対象カードのIDmをセット
+     * @param serviceCode サービスコードをセット
+     * @param blocks 書き込むブロックのアドレスの配列をセット
+     * @param payload 書き込むデータ (blocks.length * 16バイト)をセット
+     * @param from 先頭位置をセット
+     * @param to 終端位置(含みません)をセット
+     * @return CommandPacket 生成したコマンドパケットが戻ります
+     * @throws FeliCaException
+     */
+    protected static CommandPacket newWritePacket(IDm idm, ServiceCode serviceCode, int[] blocks
+            , byte[] payload, int from, int to) throws FeliCaException {
+        int length = 4 + (to - from) * 16; // サービス数 + サービスコード + ブロック数 + データ
+        for ( int i = from; i < to; i++ ) {
+            length += blocks[i] > 0xff ? 3 : 2;
+        }
+        ByteBuffer b = ByteBuffer.allocate(length);
+        b.put((byte) 0x01);                       // サービス数
+        serviceCode.writeTo(b);                   // サービスコード (little endian)
+        b.put((byte) (to - from));                // 同時書き込みブロック数
+        for ( int i = from; i < to; i++ ) {       // ブロックリスト
+            if ( blocks[i] > 0xff ) {
+                b.put((byte) 0x00).put((byte) (blocks[i] & 0xff)).put((byte) (blocks[i] >> 8));
+            } else {
+                b.put((byte) 0x80).put((byte) blocks[i]);
+            }
+        }
+        b.put(payload, from * 16, (to - from) * 16); // ブロックデータ
+        return new CommandPacket(COMMAND_WRITE_WO_ENCRYPTION, idm, b.array());
+    }
+    /**
+     * 1コマンドで書き込む最大ブロック数を取得します
+     * @return int 最大ブロック数が戻ります
+     */
+    public int getMaxWriteBlocks() {
+        return this.maxWriteBlocks;
+    }
+    /**
+     * 1コマンドで書き込む最大ブロック数を設定します
+     * 
+     * @param maxWriteBlocks 最大ブロック数 (1～13)をセット
+     */
+    public void setMaxWriteBlocks(int maxWriteBlocks) {
+        if ( maxWriteBlocks < 1 || maxWriteBlocks > DEFAULT_MAX_WRITE_BLOCKS ) {
+            throw new IllegalArgumentException("maxWriteBlocks : " + maxWriteBlocks);
+        }
+        this.maxWriteBlocks = maxWriteBlocks;
+    }
+    /**
+     * PMmから算出したタイムアウトでコマンドを実行します
+     * 
+     * 再送ハンドラが設定されている場合は、冪等なコマンドの失敗を再送で復旧します
+     * 
+     * @param commandPacket 実行するコマンドパケットをセット
+     * @return CommandResponse コマンドの実行結果が戻ります
+     * @throws FeliCaException
+     */
+    protected CommandResponse execute(CommandPacket commandPacket) throws FeliCaException {
+        return FeliCaLib.execute(this.getTransport(), commandPacket, this.pmm
+                , this.retryHandler, this.systemCode);
+    }
+    /**
+     * コマンドを実行し、応答フレームを解析せずに取得します
+     * 
+     * ResponseViewと組み合わせることで、応答の複製を作らずに結果を参照できます
+     * @param commandPacket 実行するコマンドパケットをセット
+     * @return byte[] 応答フレームが戻ります
+     * @throws FeliCaException
+     */
+    protected byte[] executeRaw(CommandPacket commandPacket) throws FeliCaException {
+        return FeliCaLib.executeRaw(this.getTransport(), commandPacket, this.pmm
+                , this.retryHandler, this.systemCode);
+    }
+    /**
+     * 失敗したコマンドの再送を行うハンドラを設定します
+     * 
+     * @param retryHandler 再送ハンドラをセット (nullの場合は再送しません)
+     */
+    public void setRetryHandler(FeliCaRetryHandler retryHandler) {
+        this.retryHandler = retryHandler;
+    }
+    /**
+     * コマンド発行に使用するトランスポートを取得します
+     * 
+     * Tagから生成した場合はFeliCaSessionが使われ、接続は複数のコマンドにわたって保持されます
+     * @return IFeliCaTransport トランスポートが戻ります
+     */
+    public synchronized IFeliCaTransport getTransport() {
+        if ( this.transport == null ) {
+            this.transport = new FeliCaSession(this.nfcTag);
+        }
+        return this.transport;
+    }
+    /**
+     * 保持しているトランスポートを閉じます
+     * 
+     * トランスポートを閉じるのはセッションを生成したタグだけです。select()で取得したタグは
+     * トランスポートを共有しているため、close()を呼んでもトランスポートを閉じません
+     */
+    public synchronized void close() {
+        if ( !this.ownsTransport ) return;
+        if ( this.transport != null ) {
+            this.transport.close();
+            if ( this.nfcTag != null ) {
+                this.transport = null;
+            }
+        }
+    }
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
@@ -11,6 +11,8 @@
  */
 package net.kazzz.felica;
 
+import java.nio.ByteBuffer;
+
 /**
  * FeliCaで使用するバイトデータを抽象化したインタフェース
  * 
@@ -26,4 +28,16 @@ public interface IFeliCaByteData {
      * @return byte[] バイト列表現が配列で戻ります
      */
     byte[] getBytes();
+    /**
+     * バイト列表現の長さを取得します
+     * @return int バイト列表現のバイト数が戻ります
+     */
+    int encodedLength();
+    /**
+     * バイト列表現をバッファの現在位置に書き込みます
+     * 
+     * getBytes()と異なり、中間の配列を生成しません
+     * @param buffer 書き込み先のバッファをセット (encodedLength()バイト以上の残りが必要です)
+     */
+    void writeTo(ByteBuffer buffer);
 }
@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+/**
+ * 非同期に実行したコマンドの完了通知を受け取るジェネリックインタフェースを定義します
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public interface IFeliCaCallback<T> {
+    /**
+     * コマンドが正常に完了した場合に呼ばれます
+     * @param result コマンドの実行結果
+     */
+    void onSuccess(T result);
+    /**
+     * コマンドが失敗、キャンセル、又は期限切れになった場合に呼ばれます
+     * @param e 失敗の原因となった例外
+     */
+    void onFailure(FeliCaException e);
+}
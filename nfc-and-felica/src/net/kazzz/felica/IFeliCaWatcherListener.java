@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+
+/**
+ * カードのタッチと離脱の通知を受け取るインタフェースを定義します
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public interface IFeliCaWatcherListener {
+    /**
+     * カードがかざされた場合に呼ばれます
+     * @param card 検出したカード
+     */
+    void onArrived(FeliCaCandidate card);
+    /**
+     * かざされていたカードが離れた場合に呼ばれます
+     * @param idm 離れたカードのIDm
+     */
+    void onDeparted(IDm idm);
+}
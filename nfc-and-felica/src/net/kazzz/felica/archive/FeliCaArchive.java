@@ -0,0 +1,563 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.archive;
+
+import static net.kazzz.util.ThreadUtil.daemonThreadFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.util.LongLongHashMap;
+
+/**
+ * カードのスナップショットをIDm毎に蓄積する追記型のアーカイブを提供します
+ *
+ * <pre>
+ * スナップショット(FeliCaDump等の任意のバイト列)はセグメントファイルへ追記されます。
+ * 各レコードは同じカードの1つ前のレコードの位置を持ち、カード毎の履歴を逆順にたどれます。
+ * メモリ上にはIDm(long)から最新レコードの位置へのプリミティブなハッシュ表だけを持つため、
+ * 最新のスナップショットはO(1)で取得でき、他のカードのレコードを読むことはありません。
+ *
+ * compact()は古くなったセグメントを書き直し、保持期間を過ぎた旧スナップショットを取り除きます。
+ * 書き直しの間も追記と参照を続けられます。
+ *
+ * レコード (ビッグエンディアン)
+ *   +0  マジック "FCAR"
+ *   +4  データ長 (u32)
+ *   +8  IDm (8バイト)
+ *   +16 タイムスタンプ (ミリ秒)
+ *   +24 同じカードの1つ前のレコードの位置 (無い場合は-1)
+ *   +32 データ
+ * レコードの位置は (セグメント番号 << 32 | セグメント中のオフセット) です。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaArchive {
+    public static final int RECORD_MAGIC = 0x46434152; // "FCAR"
+    public static final int HEADER_SIZE = 32;
+    /** 既定のセグメントの最大長 */
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+    /** 位置が無いことを示す値 */
+    public static final long NONE = -1L;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int OFFSET_PREVIOUS = 24;
+
+    //バックグラウンドでの書き直しに使用するスレッド (全インスタンスで共有します)
+    private static final ExecutorService compactor =
+        Executors.newSingleThreadExecutor(daemonThreadFactory("FeliCa-archive-compactor"));
+
+    /**
+     * アーカイブ中の1つのスナップショットを提供します
+     */
+    public static class Record {
+        final long pointer;
+        final long idm;
+        final long timestamp;
+        final long previous;
+        final byte[] data;
+
+        Record(long pointer, long idm, long timestamp, long previous, byte[] data) {
+            this.pointer = pointer;
+            this.idm = idm;
+            this.timestamp = timestamp;
+            this.previous = previous;
+            this.data = data;
+        }
+        /**
+         * レコードの位置を取得します
+         * @return long レコードの位置が戻ります
+         */
+        public long getPointer() {
+            return this.pointer;
+        }
+        /**
+         * カードのIDmを取得します
+         * @return IDm IDmが戻ります
+         */
+        public IDm getIDm() {
+            return new IDm(this.idm);
+        }
+        /**
+         * タイムスタンプを取得します
+         * @return long タイムスタンプ (ミリ秒)が戻ります
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+        /**
+         * スナップショットのデータを取得します
+         * @return byte[] データが戻ります
+         */
+        public byte[] getData() {
+            return this.data;
+        }
+    }
+
+    protected final File directory;
+    protected final long segmentSize;
+    protected final LongLongHashMap index = new LongLongHashMap(); // IDm -> 最新レコードの位置
+    protected final Map<Integer, FileChannel> segments = new TreeMap<Integer, FileChannel>();
+    protected int activeId;
+    protected long activeSize;
+    protected int nextId;
+    protected boolean compacting;
+    protected boolean closed;
+    /**
+     * コンストラクタ
+     *
+     * @param directory セグメントファイルを置くディレクトリをセット
+     * @throws IOException
+     */
+    public FeliCaArchive(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+    /**
+     * コンストラクタ
+     *
+     * 既存のセグメントを走査して索引を再構築します (レコードのヘッダだけを読みます)
+     * @param directory セグメントファイルを置くディレクトリをセット
+     * @param segmentSize セグメントの最大長をセット
+     * @throws IOException
+     */
+    public FeliCaArchive(File directory, long segmentSize) throws IOException {
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("cannot create directory : " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        //書き直しの途中で中断された一時ファイルを削除します
+        for ( File f : list(directory, TEMP_SUFFIX) ) {
+            f.delete();
+        }
+        LongLongHashMap latestTime = new LongLongHashMap();
+        int last = -1;
+        for ( File f : list(directory, SEGMENT_SUFFIX) ) {
+            String name = f.getName();
+            int id;
+            try {
+                id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            FileChannel channel = new RandomAccessFile(f, "rw").getChannel();
+            this.segments.put(id, channel);
+            this.activeSize = this.scan(id, channel, latestTime);
+            last = Math.max(last, id);
+        }
+        if ( last < 0 ) {
+            this.nextId = 0;
+            this.roll();
+        } else {
+            this.activeId = last;
+            this.activeSize = this.segments.get(last).size();
+            this.nextId = last + 1;
+        }
+    }
+    /**
+     * スナップショットを追記します
+     *
+     * カード毎のタイムスタンプは追記順に増加することを前提とします
+     * @param idm カードのIDmをセット
+     * @param timestamp タイムスタンプ (ミリ秒)をセット
+     * @param data スナップショットのデータをセット
+     * @return long 追記したレコードの位置が戻ります
+     * @throws IOException
+     */
+    public synchronized long append(IDm idm, long timestamp, byte[] data) throws IOException {
+        this.ensureOpen();
+        if ( this.activeSize > 0 && this.activeSize + HEADER_SIZE + data.length > this.segmentSize ) {
+            this.roll();
+        }
+        long key = idm.longValue();
+        long pointer = pointer(this.activeId, this.activeSize);
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        b.putInt(RECORD_MAGIC).putInt(data.length).putLong(key).putLong(timestamp)
+            .putLong(this.index.get(key, NONE)).put(data).flip();
+        writeFully(this.segments.get(this.activeId), b, this.activeSize);
+        this.activeSize += b.capacity();
+        this.index.put(key, pointer);
+        return pointer;
+    }
+    /**
+     * カードの最新のスナップショットを取得します
+     *
+     * @param idm カードのIDmをセット
+     * @return Record 最新のレコードが戻ります (無い場合はnull)
+     * @throws IOException
+     */
+    public synchronized Record getLatest(IDm idm) throws IOException {
+        this.ensureOpen();
+        long pointer = this.index.get(idm.longValue(), NONE);
+        return pointer == NONE ? null : this.read(pointer, true);
+    }
+    /**
+     * カードのスナップショットを新しい順にたどります
+     *
+     * <pre>
+     * [from, to]の範囲のタイムスタンプを持つレコードだけが戻ります。
+     * fromより古いレコードに達した時点で、それ以上はたどりません。
+     * 反復中にcompact()が完了した場合、以降の読み込みはIllegalStateExceptionになることがあります。
+     * </pre>
+     *
+     * @param idm カードのIDmをセット
+     * @param from 範囲の開始 (ミリ秒、含みます)をセット
+     * @param to 範囲の終了 (ミリ秒、含みます)をセット
+     * @return Iterator<Record> レコードの反復子が戻ります
+     */
+    public synchronized Iterator<Record> history(IDm idm, final long from, final long to) {
+        final long start = this.index.get(idm.longValue(), NONE);
+        return new Iterator<Record>() {
+            long pointer = start;
+            Record next;
+
+            @Override
+            public boolean hasNext() {
+                while ( this.next == null && this.pointer != NONE ) {
+                    Record r;
+                    try {
+                        r = FeliCaArchive.this.readSynchronized(this.pointer, false);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    if ( r.timestamp < from ) {
+                        this.pointer = NONE;
+                        break;
+                    }
+                    this.pointer = r.previous;
+                    if ( r.timestamp <= to ) {
+                        try {
+                            this.next = FeliCaArchive.this.readSynchronized(r.pointer, true);
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+                return this.next != null;
+            }
+            @Override
+            public Record next() {
+                if ( !this.hasNext() ) throw new NoSuchElementException();
+                Record r = this.next;
+                this.next = null;
+                return r;
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    /**
+     * 記録されているカードの数を取得します
+     * @return int カードの数が戻ります
+     */
+    public synchronized int size() {
+        return this.index.size();
+    }
+    /**
+     * バックグラウンドでcompact()を実行します
+     *
+     * @param retainMillis 最新以外のスナップショットを残す期間 (ミリ秒)をセット
+     * @return Future<Integer> 取り除いたレコード数のFutureが戻ります
+     */
+    public Future<Integer> compactAsync(final long retainMillis) {
+        return compactor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return compact(retainMillis);
+            }
+        });
+    }
+    /**
+     * 古いセグメントを書き直し、保持期間を過ぎた旧スナップショットを取り除きます
+     *
+     * <pre>
+     * 現在のセグメントを閉じて新しいセグメントへ切り替えた後、閉じたセグメントの
+     * レコードのうち、各カードの最新と保持期間内のものだけを新しいセグメントへ複写します。
+     * 複写はロックを保持せずに行うため、その間も追記と参照を続けられます。
+     * </pre>
+     *
+     * @param retainMillis 最新以外のスナップショットを残す期間 (ミリ秒)をセット (0の場合は最新だけを残します)
+     * @return int 取り除いたレコード数が戻ります
+     * @throws IOException
+     */
+    public int compact(long retainMillis) throws IOException {
+        final long horizon = System.currentTimeMillis() - retainMillis;
+        final Set<Integer> sealed;
+        final Map<Integer, FileChannel> channels;
+        final long[] keys;
+        final long[] latest;
+        synchronized (this) {
+            this.ensureOpen();
+            if ( this.compacting ) {
+                throw new IllegalStateException("compaction is already running");
+            }
+            this.compacting = true;
+            this.roll();
+            sealed = new HashSet<Integer>(this.segments.keySet());
+            sealed.remove(this.activeId);
+            channels = new TreeMap<Integer, FileChannel>(this.segments);
+            keys = this.index.keys();
+            latest = new long[keys.length];
+            for ( int i = 0; i < keys.length; i++ ) {
+                latest[i] = this.index.get(keys[i], NONE);
+            }
+        }
+        try {
+            //閉じたセグメントは変更されないため、ロックを保持せずに読み込みます
+            List<File> temps = new ArrayList<File>();
+            List<Integer> ids = new ArrayList<Integer>();
+            long[] moved = new long[keys.length];
+            int dropped = 0;
+            FileChannel out = null;
+            int outId = -1;
+            long outSize = 0;
+            try {
+                for ( int i = 0; i < keys.length; i++ ) {
+                    List<Record> kept = new ArrayList<Record>();
+                    for ( long p = latest[i]; p != NONE; ) {
+                        Record r = read(channels.get(segment(p)), p, false);
+                        if ( kept.isEmpty() || r.timestamp >= horizon ) {
+                            kept.add(r);
+                        } else {
+                            dropped++;
+                        }
+                        p = r.previous;
+                    }
+                    long previous = NONE;
+                    for ( int j = kept.size() - 1; j >= 0; j-- ) { // 古い順に書き出します
+                        Record h = kept.get(j);
+                        Record r = read(channels.get(segment(h.pointer)), h.pointer, true);
+                        int length = HEADER_SIZE + r.data.length;
+                        if ( out == null || (outSize > 0 && outSize + length > this.segmentSize) ) {
+                            if ( out != null ) out.close();
+                            synchronized (this) {
+                                outId = this.nextId++;
+                            }
+                            File f = new File(this.directory, name(outId) + TEMP_SUFFIX);
+                            out = new RandomAccessFile(f, "rw").getChannel();
+                            temps.add(f);
+                            ids.add(outId);
+                            outSize = 0;
+                        }
+                        ByteBuffer b = ByteBuffer.allocate(length);
+                        b.putInt(RECORD_MAGIC).putInt(r.data.length).putLong(r.idm)
+                            .putLong(r.timestamp).putLong(previous).put(r.data).flip();
+                        writeFully(out, b, outSize);
+                        previous = pointer(outId, outSize);
+                        outSize += length;
+                    }
+                    moved[i] = previous;
+                }
+                if ( out != null ) {
+                    out.force(true);
+                    out.close();
+                }
+            } catch (IOException e) {
+                if ( out != null ) out.close();
+                for ( File f : temps ) f.delete();
+                throw e;
+            }
+            synchronized (this) {
+                for ( int i = 0; i < temps.size(); i++ ) {
+                    File f = new File(this.directory, name(ids.get(i)) + SEGMENT_SUFFIX);
+                    if ( !temps.get(i).renameTo(f) ) {
+                        throw new IOException("cannot rename " + temps.get(i));
+                    }
+                    this.segments.put(ids.get(i), new RandomAccessFile(f, "rw").getChannel());
+                }
+                for ( int i = 0; i < keys.length; i++ ) {
+                    long current = this.index.get(keys[i], NONE);
+                    if ( current == latest[i] ) {
+                        this.index.put(keys[i], moved[i]);
+                        continue;
+                    }
+                    //書き直しの間に追記されたカードは、閉じたセグメントを指すレコードを付け替えます
+                    for ( long p = current; p != NONE; ) {
+                        Record r = this.read(p, false);
+                        if ( r.previous != NONE && sealed.contains(segment(r.previous)) ) {
+                            ByteBuffer b = ByteBuffer.allocate(8);
+                            b.putLong(moved[i]).flip();
+                            writeFully(this.segments.get(segment(p)), b, offset(p) + OFFSET_PREVIOUS);
+                            break;
+                        }
+                        p = r.previous;
+                    }
+                }
+                for ( int id : sealed ) {
+                    this.segments.remove(id).close();
+                    new File(this.directory, name(id) + SEGMENT_SUFFIX).delete();
+                }
+            }
+            return dropped;
+        } finally {
+            synchronized (this) {
+                this.compacting = false;
+            }
+        }
+    }
+    /**
+     * アーカイブを閉じます
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if ( this.closed ) return;
+        this.closed = true;
+        for ( FileChannel c : this.segments.values() ) {
+            c.close();
+        }
+        this.segments.clear();
+    }
+    /**
+     * 新しいセグメントへ切り替えます
+     */
+    protected void roll() throws IOException {
+        int id = this.nextId++;
+        File f = new File(this.directory, name(id) + SEGMENT_SUFFIX);
+        this.segments.put(id, new RandomAccessFile(f, "rw").getChannel());
+        this.activeId = id;
+        this.activeSize = 0;
+    }
+    /**
+     * セグメントを走査して索引を更新します
+     *
+     * 途中で切れたレコードは切り詰めます
+     * @return long 有効なレコードの終端が戻ります
+     */
+    protected long scan(int id, FileChannel channel, LongLongHashMap latestTime) throws IOException {
+        long size = channel.size();
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while ( pos + HEADER_SIZE <= size ) {
+            header.clear();
+            readFully(channel, header, pos);
+            int length = header.getInt(4);
+            if ( header.getInt(0) != RECORD_MAGIC || length < 0 || pos + HEADER_SIZE + length > size ) {
+                break;
+            }
+            long key = header.getLong(8);
+            long timestamp = header.getLong(16);
+            //中断された書き直しで同じレコードが複数あっても、最も新しいものを採ります
+            if ( !latestTime.containsKey(key) || latestTime.get(key, 0) <= timestamp ) {
+                latestTime.put(key, timestamp);
+                this.index.put(key, pointer(id, pos));
+            }
+            pos += HEADER_SIZE + length;
+        }
+        if ( pos < size ) {
+            channel.truncate(pos);
+        }
+        return pos;
+    }
+    /**
+     * ロックを取得してレコードを読み込みます
+     */
+    protected synchronized Record readSynchronized(long pointer, boolean withData) throws IOException {
+        this.ensureOpen();
+        return this.read(pointer, withData);
+    }
+    /**
+     * レコードを読み込みます
+     */
+    protected Record read(long pointer, boolean withData) throws IOException {
+        FileChannel channel = this.segments.get(segment(pointer));
+        if ( channel == null ) {
+            throw new IOException("segment " + segment(pointer) + " is no longer available");
+        }
+        return read(channel, pointer, withData);
+    }
+    /**
+     * レコードを読み込みます
+     *
+     * @param withData データも読み込む場合はtrueをセット (falseの場合はヘッダだけを読みます)
+     */
+    protected static Record read(FileChannel channel, long pointer, boolean withData) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, offset(pointer));
+        if ( header.getInt(0) != RECORD_MAGIC ) {
+            throw new IOException("broken record at " + Long.toHexString(pointer));
+        }
+        byte[] data = null;
+        if ( withData ) {
+            data = new byte[header.getInt(4)];
+            readFully(channel, ByteBuffer.wrap(data), offset(pointer) + HEADER_SIZE);
+        }
+        return new Record(pointer, header.getLong(8), header.getLong(16), header.getLong(24), data);
+    }
+    /**
+     * アーカイブが開いているかを検査します
+     */
+    protected void ensureOpen() throws IOException {
+        if ( this.closed ) {
+            throw new IOException("archive is already closed");
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+        while ( b.hasRemaining() ) {
+            int n = channel.read(b, position + b.position());
+            if ( n < 0 ) throw new IOException("unexpected end of segment");
+        }
+    }
+    private static void writeFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+        while ( b.hasRemaining() ) {
+            channel.write(b, position + b.position());
+        }
+    }
+    private static File[] list(File directory, final String suffix) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        if ( files == null ) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+    private static String name(int id) {
+        return String.format("%08d", id);
+    }
+    private static long pointer(int segment, long offset) {
+        return (long) segment << 32 | offset;
+    }
+    private static int segment(long pointer) {
+        return (int) (pointer >>> 32);
+    }
+    private static long offset(long pointer) {
+        return pointer & 0xffffffffL;
+    }
+}
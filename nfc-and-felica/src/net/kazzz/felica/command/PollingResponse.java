@@ -13,7 +13,7 @@ package net.kazzz.felica.command;
 
 import java.util.Arrays;
 
-import net.kazzz.felica.lib.FeliCaLib;
+import net.kazzz.felica.lib.FeliCaCommandRegistry;
 import net.kazzz.felica.lib.FeliCaLib.CommandResponse;
 import net.kazzz.felica.lib.FeliCaLib.PMm;
 import net.kazzz.felica.lib.Util;
@@ -38,7 +38,7 @@ public class PollingResponse extends CommandResponse {
     public PollingResponse(CommandResponse response) {
         super(response);
         if ( this.data != null && this.data.length >= 8 ) {
-            this.pmm = new PMm(Arrays.copyOfRange(this.data, 0, 8));
+            this.pmm = new PMm(this.data, 0);
             this.requestData = Arrays.copyOfRange(this.data, 8, data.length);
         } else {
             this.pmm = null;
@@ -53,6 +53,16 @@ public class PollingResponse extends CommandResponse {
     public PMm getPMm() {
         return this.pmm;
     }
+    /**
+     * カードのシステムコードを取得します
+     * 
+     * システムコードリクエスト(0x01)でPollingした場合のみ応答に含まれます
+     * @return int システムコードが戻ります (含まれていない場合は-1)
+     */
+    public int getSystemCode() {
+        if ( this.requestData == null || this.requestData.length < 2 ) return -1;
+        return (this.requestData[0] & 0xff) << 8 | (this.requestData[1] & 0xff);
+    }
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
@@ -60,7 +70,7 @@ public class PollingResponse extends CommandResponse {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("FeliCa レスポンス　パケット \n");
-        sb.append(" コマンド名 : " + FeliCaLib.commandMap.get(this.responseCode)  +  "\n");
+        sb.append(" コマンド名 : " + FeliCaCommandRegistry.getName(this.responseCode)  +  "\n");
         sb.append(" データ長 : " + this.length + "\n");
         sb.append(" コマンドコード : " + Util.getHexString(this.responseCode) +  "\n");
         if ( this.idm != null )
@@ -0,0 +1,48 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.command;
+
+/**
+ * Pollingコマンドの応答フレームを複製せずに参照するビュークラスを提供します
+ * 
+ * <pre>
+ *  +10～+17 PMm, +18～+19 システムコード (リクエストコード 0x01 の場合)
+ * </pre>
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public class PollingResponseView extends ResponseView {
+    /**
+     * PMmを64bit値として取得します
+     * @return long ビッグエンディアンで詰めたPMmが戻ります
+     */
+    public long getPMmValue() {
+        return this.getLong(DATA_OFFSET);
+    }
+    /**
+     * 応答にシステムコードが含まれているかを検査します
+     * @return boolean システムコードが含まれている場合trueが戻ります
+     */
+    public boolean hasSystemCode() {
+        return this.getDataLength() >= 10;
+    }
+    /**
+     * システムコードを取得します
+     * @return int システムコードが戻ります (含まれていない場合は-1)
+     */
+    public int getSystemCode() {
+        if ( !this.hasSystemCode() ) return -1;
+        return this.getData(8) << 8 | this.getData(9);
+    }
+}
@@ -13,6 +13,7 @@ package net.kazzz.felica.command;
 
 import java.util.Arrays;
 
+import net.kazzz.felica.lib.FeliCaCommandRegistry;
 import net.kazzz.felica.lib.FeliCaLib;
 import net.kazzz.felica.lib.FeliCaLib.CommandResponse;
 import net.kazzz.felica.lib.Util;
@@ -38,9 +39,15 @@ public class ReadResponse extends CommandResponse {
      */
     public ReadResponse(CommandResponse response) {
         super(response);
-        this.statusFlag1 = this.data[0];
-        this.statusFlag2 = this.data[1];
-        if ( this.getStatusFlag1() == 0 ) {
+        if ( this.data != null && this.data.length >= 2 ) {
+            this.statusFlag1 = this.data[0];
+            this.statusFlag2 = this.data[1];
+        } else {
+            //応答が無い、又は短すぎる場合はエラーとして扱います
+            this.statusFlag1 = (byte) FeliCaLib.STATUSFLAG1_ERROR;
+            this.statusFlag2 = FeliCaLib.STATUSFLAG2_ERROR_LENGTH;
+        }
+        if ( this.getStatusFlag1() == 0 && this.data.length >= 3 ) {
             this.blockCount  = this.data[2];
             this.blockData = Arrays.copyOfRange(this.data, 3, data.length);
         } else {
@@ -88,7 +95,7 @@ public class ReadResponse extends CommandResponse {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("FeliCa Read Response \n");
-        sb.append(" コマンド名 : " + FeliCaLib.commandMap.get(this.responseCode)  +  "\n");
+        sb.append(" コマンド名 : " + FeliCaCommandRegistry.getName(this.responseCode)  +  "\n");
         sb.append(" データ長 : " + this.length + "\n");
         sb.append(" コマンドコード : " + Util.getHexString(this.responseCode) +  "\n");
         if ( this.idm != null )
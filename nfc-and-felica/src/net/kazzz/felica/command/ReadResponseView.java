@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.command;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Readコマンドの応答フレームを複製せずに参照するビュークラスを提供します
+ * 
+ * <pre>
+ *  +10 ステータスフラグ1, +11 ステータスフラグ2, +12 ブロック数, +13～ ブロックデータ(16バイト×ブロック数)
+ * </pre>
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public class ReadResponseView extends ResponseView {
+    public static final int BLOCK_SIZE = 16;
+    public static final int BLOCK_OFFSET = DATA_OFFSET + 3;
+    /**
+     * statusFlag1を取得します
+     * @return int statusFlag1が戻ります (応答が短すぎる場合は0xff)
+     */
+    public int getStatusFlag1() {
+        return this.getDataLength() >= 2 ? this.getData(0) : 0xff;
+    }
+    /**
+     * statusFlag2を取得します
+     * @return int statusFlag2が戻ります
+     */
+    public int getStatusFlag2() {
+        return this.getDataLength() >= 2 ? this.getData(1) : 0;
+    }
+    /**
+     * blockCountを取得します
+     * @return int blockCountが戻ります (エラー応答の場合は0)
+     */
+    public int getBlockCount() {
+        if ( this.getStatusFlag1() != 0 || this.getDataLength() < 3 ) return 0;
+        return Math.min(this.getData(2), (this.length - BLOCK_OFFSET) / BLOCK_SIZE);
+    }
+    /**
+     * ブロックの配列上の位置を取得します
+     * @param index 応答中のブロックの順番(0オリジン)をセット
+     * @return int array()上のブロックの開始位置が戻ります
+     */
+    public int getBlockOffset(int index) {
+        return this.offset + BLOCK_OFFSET + index * BLOCK_SIZE;
+    }
+    /**
+     * ブロックを参照するByteBufferを取得します (データは複製しません)
+     * @param index 応答中のブロックの順番(0オリジン)をセット
+     * @return ByteBuffer 16バイトの読み込み専用バッファが戻ります
+     */
+    public ByteBuffer getBlock(int index) {
+        return this.slice(BLOCK_OFFSET + index * BLOCK_SIZE, BLOCK_SIZE);
+    }
+    /**
+     * ブロックを指定の配列へ複写します
+     * @param index 応答中のブロックの順番(0オリジン)をセット
+     * @param dest 複写先の配列をセット
+     * @param destPos 複写先の開始位置をセット
+     */
+    public void copyBlock(int index, byte[] dest, int destPos) {
+        System.arraycopy(this.frame, this.getBlockOffset(index), dest, destPos, BLOCK_SIZE);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.command;
+
+import java.nio.ByteBuffer;
+
+import net.kazzz.felica.lib.Util;
+
+/**
+ * 応答フレームを複製せずに参照するビュークラスを提供します
+ * 
+ * <pre>
+ * CommandResponseと異なり、IDmやデータ部を配列へ複製せず、フレーム上のオフセットで参照します。
+ * wrap()で別のフレームを指し直せるため、1つのインスタンスを繰り返し使えます。
+ * 
+ *  +0 データ長, +1 レスポンスコード, +2～+9 IDm, +10～ データ
+ * </pre>
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public class ResponseView {
+    public static final int IDM_OFFSET = 2;
+    public static final int DATA_OFFSET = 10;
+
+    protected byte[] frame;
+    protected int offset;
+    protected int length;
+    /**
+     * デフォルトコンストラクタ
+     */
+    public ResponseView() {
+    }
+    /**
+     * コンストラクタ
+     * @param frame 応答フレームをセット
+     */
+    public ResponseView(byte[] frame) {
+        this.wrap(frame);
+    }
+    /**
+     * 応答フレームを参照します
+     * @param frame 応答フレームをセット (nullも可)
+     * @return ResponseView このビューが戻ります
+     */
+    public ResponseView wrap(byte[] frame) {
+        return this.wrap(frame, 0, frame != null ? frame.length : 0);
+    }
+    /**
+     * 配列中の応答フレームを参照します
+     * @param frame 応答フレームを含む配列をセット
+     * @param offset フレームの開始位置をセット
+     * @param length フレームの長さをセット
+     * @return ResponseView このビューが戻ります
+     */
+    public ResponseView wrap(byte[] frame, int offset, int length) {
+        this.frame = frame;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+    /**
+     * 他のビューと同じフレームを参照します
+     * @param view 参照元のビューをセット
+     * @return ResponseView このビューが戻ります
+     */
+    public ResponseView wrap(ResponseView view) {
+        return this.wrap(view.frame, view.offset, view.length);
+    }
+    /**
+     * フレームの長さが正しいかを検査します
+     * @return boolean データ長バイトとフレーム長が一致し、IDmを含む場合trueが戻ります
+     */
+    public boolean isValid() {
+        return this.frame != null && this.length >= DATA_OFFSET
+            && (this.frame[this.offset] & 0xff) == this.length;
+    }
+    /**
+     * 参照している配列を取得します
+     * @return byte[] フレームを含む配列が戻ります (複製ではありません)
+     */
+    public byte[] array() {
+        return this.frame;
+    }
+    /**
+     * 配列中のフレームの開始位置を取得します
+     * @return int 開始位置が戻ります
+     */
+    public int arrayOffset() {
+        return this.offset;
+    }
+    /**
+     * フレーム全体の長さを取得します
+     * @return int フレーム長が戻ります
+     */
+    public int getLength() {
+        return this.length;
+    }
+    /**
+     * レスポンスコードを取得します
+     * @return byte レスポンスコードが戻ります
+     */
+    public byte getResponseCode() {
+        return this.frame[this.offset + 1];
+    }
+    /**
+     * IDmを64bit値として取得します
+     * @return long ビッグエンディアンで詰めたIDmが戻ります
+     */
+    public long getIDmValue() {
+        return this.getLong(IDM_OFFSET);
+    }
+    /**
+     * データ部の長さを取得します
+     * @return int データ部の長さが戻ります
+     */
+    public int getDataLength() {
+        return this.length - DATA_OFFSET;
+    }
+    /**
+     * データ部の1バイトを取得します
+     * @param index データ部の先頭からの位置をセット
+     * @return int 符号なしのバイト値が戻ります
+     */
+    public int getData(int index) {
+        return this.frame[this.offset + DATA_OFFSET + index] & 0xff;
+    }
+    /**
+     * フレームの一部を参照するByteBufferを取得します (データは複製しません)
+     * @param start フレーム先頭からの位置をセット
+     * @param count バイト数をセット
+     * @return ByteBuffer 読み込み専用のバッファが戻ります
+     */
+    public ByteBuffer slice(int start, int count) {
+        return ByteBuffer.wrap(this.frame, this.offset + start, count).slice().asReadOnlyBuffer();
+    }
+    /**
+     * フレーム中の8バイトをビッグエンディアンの64bit値として取得します
+     * @param start フレーム先頭からの位置をセット
+     * @return long 64bit値が戻ります
+     */
+    protected long getLong(int start) {
+        return Util.toLong(this.frame, this.offset + start);
+    }
+}
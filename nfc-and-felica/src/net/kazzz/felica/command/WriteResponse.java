@@ -11,6 +11,7 @@
  */
 package net.kazzz.felica.command;
 
+import net.kazzz.felica.lib.FeliCaCommandRegistry;
 import net.kazzz.felica.lib.FeliCaLib;
 import net.kazzz.felica.lib.FeliCaLib.CommandResponse;
 import net.kazzz.felica.lib.Util;
@@ -34,8 +35,14 @@ public class WriteResponse extends CommandResponse {
      */
     public WriteResponse(CommandResponse response) {
         super(response);
-        this.statusFlag1 = this.data[0];
-        this.statusFlag2 = this.data[1];
+        if ( this.data != null && this.data.length >= 2 ) {
+            this.statusFlag1 = this.data[0];
+            this.statusFlag2 = this.data[1];
+        } else {
+            //応答が無い、又は短すぎる場合はエラーとして扱います
+            this.statusFlag1 = (byte) FeliCaLib.STATUSFLAG1_ERROR;
+            this.statusFlag2 = FeliCaLib.STATUSFLAG2_ERROR_LENGTH;
+        }
     }
     
     /**
@@ -60,7 +67,7 @@ public class WriteResponse extends CommandResponse {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("FeliCa Write Response \n");
-        sb.append(" コマンド名 : " + FeliCaLib.commandMap.get(this.responseCode)  +  "\n");
+        sb.append(" コマンド名 : " + FeliCaCommandRegistry.getName(this.responseCode)  +  "\n");
         sb.append(" データ長 : " + this.length + "\n");
         sb.append(" コマンドコード : " + Util.getHexString(this.responseCode) +  "\n");
         if ( this.idm != null )
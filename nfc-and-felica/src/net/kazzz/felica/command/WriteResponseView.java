@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.command;
+
+/**
+ * Writeコマンドの応答フレームを複製せずに参照するビュークラスを提供します
+ * 
+ * <pre>
+ *  +10 ステータスフラグ1, +11 ステータスフラグ2
+ * </pre>
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public class WriteResponseView extends ResponseView {
+    /**
+     * statusFlag1を取得します
+     * @return int statusFlag1が戻ります (応答が短すぎる場合は0xff)
+     */
+    public int getStatusFlag1() {
+        return this.getDataLength() >= 2 ? this.getData(0) : 0xff;
+    }
+    /**
+     * statusFlag2を取得します
+     * @return int statusFlag2が戻ります
+     */
+    public int getStatusFlag2() {
+        return this.getDataLength() >= 2 ? this.getData(1) : 0;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.command;
+
+import java.util.Arrays;
+
+import net.kazzz.felica.lib.Util;
+
+/**
+ * 複数ブロックへの書き込み結果をブロック毎に保持するクラスを提供します
+ *
+ * <pre>
+ * ステータスフラグはコマンド単位で返されるため、同じコマンドで書き込んだブロックは同じ値になります。
+ * 失敗したコマンド以降のブロックは送信されず、未書き込み(NOT_WRITTEN)のままになります。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class WriteResult {
+    /** 未書き込みを示すステータスフラグ値 */
+    public static final int NOT_WRITTEN = -1;
+
+    final int[] blocks;
+    final int[] statusFlag1;
+    final int[] statusFlag2;
+    /**
+     * コンストラクタ
+     *
+     * @param blocks 書き込むブロック番号の配列をセット
+     */
+    public WriteResult(int[] blocks) {
+        this.blocks = blocks;
+        this.statusFlag1 = new int[blocks.length];
+        this.statusFlag2 = new int[blocks.length];
+        Arrays.fill(this.statusFlag1, NOT_WRITTEN);
+        Arrays.fill(this.statusFlag2, NOT_WRITTEN);
+    }
+    /**
+     * 1コマンドで書き込んだブロックの結果を設定します
+     *
+     * @param from 先頭の位置をセット
+     * @param to 終端の位置(含みません)をセット
+     * @param statusFlag1 statusFlag1をセット
+     * @param statusFlag2 statusFlag2をセット
+     */
+    public void setStatus(int from, int to, int statusFlag1, int statusFlag2) {
+        Arrays.fill(this.statusFlag1, from, to, statusFlag1);
+        Arrays.fill(this.statusFlag2, from, to, statusFlag2);
+    }
+    /**
+     * ブロック数を取得します
+     * @return int ブロック数が戻ります
+     */
+    public int getBlockCount() {
+        return this.blocks.length;
+    }
+    /**
+     * ブロック番号を取得します
+     * @param index 位置をセット
+     * @return int ブロック番号が戻ります
+     */
+    public int getBlock(int index) {
+        return this.blocks[index];
+    }
+    /**
+     * statusFlag1を取得します
+     * @param index 位置をセット
+     * @return int statusFlag1が戻ります (未書き込みの場合はNOT_WRITTEN)
+     */
+    public int getStatusFlag1(int index) {
+        return this.statusFlag1[index];
+    }
+    /**
+     * statusFlag2を取得します
+     * @param index 位置をセット
+     * @return int statusFlag2が戻ります (未書き込みの場合はNOT_WRITTEN)
+     */
+    public int getStatusFlag2(int index) {
+        return this.statusFlag2[index];
+    }
+    /**
+     * ブロックの書き込みに成功したか否かを検査します
+     * @param index 位置をセット
+     * @return boolean 成功した場合trueが戻ります
+     */
+    public boolean isWritten(int index) {
+        return this.statusFlag1[index] == 0;
+    }
+    /**
+     * 書き込みに成功したブロック数を取得します
+     * @return int 成功したブロック数が戻ります
+     */
+    public int getWrittenCount() {
+        int n = 0;
+        for ( int f : this.statusFlag1 ) {
+            if ( f == 0 ) n++;
+        }
+        return n;
+    }
+    /**
+     * 全てのブロックの書き込みに成功したか否かを検査します
+     * @return boolean 全て成功した場合trueが戻ります
+     */
+    public boolean isSuccess() {
+        return this.getWrittenCount() == this.blocks.length;
+    }
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("FeliCa Write Result \n");
+        sb.append(" ブロック数 : " + this.blocks.length + "\n");
+        sb.append(" 書き込み済み : " + this.getWrittenCount() + "\n");
+        for ( int i = 0; i < this.blocks.length; i++ ) {
+            if ( this.statusFlag1[i] == 0 ) continue;
+            sb.append(" ブロック " + this.blocks[i] + " : ");
+            if ( this.statusFlag1[i] == NOT_WRITTEN ) {
+                sb.append("未書き込み\n");
+            } else {
+                sb.append(Util.getHexString((byte) this.statusFlag1[i]) + " "
+                        + Util.getHexString((byte) this.statusFlag2[i]) + "\n");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.dump;
+
+/**
+ * カードイメージのダンプ形式を定義します
+ *
+ * <pre>
+ * 数値は全てビッグエンディアンです。サービス表はシステム毎にサービスコード順に並んでいるため、
+ * 読み込み側は二分探索で任意のサービスのブロックへ直接たどり着けます。
+ *
+ * ヘッダ (32バイト)
+ *   +0  マジック "FCDP"
+ *   +4  バージョン (u16)
+ *   +6  予約 (u16)
+ *   +8  IDm (8バイト)
+ *   +16 PMm (8バイト)
+ *   +24 システム数 (u32)
+ *   +28 サービス数 (u32, 全システムの合計)
+ *
+ * システム表 (システム数 * 24バイト)
+ *   +0  システムコード (u16)
+ *   +2  予約 (u16)
+ *   +4  先頭サービスの番号 (u32, サービス表の添字)
+ *   +8  サービス数 (u32)
+ *   +12 予約 (u32)
+ *   +16 システムのIDm (8バイト)
+ *
+ * サービス表 (サービス数 * 16バイト)
+ *   +0  サービスコード (u16, 例: 0x090f)
+ *   +2  予約 (u16)
+ *   +4  ブロック数 (u32)
+ *   +8  データの位置 (u64, ファイル先頭からのバイト数)
+ *
+ * データ領域
+ *   ブロックデータ (16バイト * ブロック数)をサービス表の順に連結したもの
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public final class FeliCaDump {
+    public static final int MAGIC = 0x46434450; // "FCDP"
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int SYSTEM_ENTRY_SIZE = 24;
+    public static final int SERVICE_ENTRY_SIZE = 16;
+    public static final int BLOCK_SIZE = 16;
+
+    // ヘッダ中の位置
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_IDM = 8;
+    static final int OFFSET_PMM = 16;
+    static final int OFFSET_SYSTEM_COUNT = 24;
+    static final int OFFSET_SERVICE_COUNT = 28;
+
+    private FeliCaDump() {}
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.PMm;
+
+/**
+ * ダンプ形式(FeliCaDump)のファイルをメモリマップして読み込むクラスを提供します
+ *
+ * <pre>
+ * ファイル全体を読み込まずに、システム表とサービス表を二分探索して任意のブロックを参照します。
+ * ブロックはマップしたバッファのスライスとして戻るため、データは複製されません。
+ * 参照は絶対位置で行うため、複数のスレッドから同時に使用できます。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaDumpReader {
+    protected final ByteBuffer buffer;
+    protected final int systemCount;
+    protected final int serviceCount;
+    protected final int serviceTable; // サービス表の位置
+    /**
+     * コンストラクタ
+     *
+     * @param file ダンプファイルをセット
+     * @throws IOException ファイルを読めない、又はダンプ形式でない場合にスローされます
+     */
+    public FeliCaDumpReader(File file) throws IOException {
+        this(map(file));
+    }
+    /**
+     * コンストラクタ
+     *
+     * @param buffer ダンプ全体を保持したバッファをセット
+     * @throws IOException ダンプ形式でない場合にスローされます
+     */
+    public FeliCaDumpReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if ( this.buffer.capacity() < FeliCaDump.HEADER_SIZE
+                || this.buffer.getInt(0) != FeliCaDump.MAGIC ) {
+            throw new IOException("not a FeliCa dump");
+        }
+        int version = this.buffer.getShort(FeliCaDump.OFFSET_VERSION) & 0xffff;
+        if ( version != FeliCaDump.VERSION ) {
+            throw new IOException("unsupported dump version : " + version);
+        }
+        this.systemCount = this.buffer.getInt(FeliCaDump.OFFSET_SYSTEM_COUNT);
+        this.serviceCount = this.buffer.getInt(FeliCaDump.OFFSET_SERVICE_COUNT);
+        long table = FeliCaDump.HEADER_SIZE + (long) this.systemCount * FeliCaDump.SYSTEM_ENTRY_SIZE;
+        long data = table + (long) this.serviceCount * FeliCaDump.SERVICE_ENTRY_SIZE;
+        if ( this.systemCount < 0 || this.serviceCount < 0 || data > this.buffer.capacity() ) {
+            throw new IOException("broken dump header");
+        }
+        this.serviceTable = (int) table;
+    }
+    /**
+     * ファイルを読み込み専用でメモリマップします
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close(); // マップはファイルを閉じた後も有効です
+        }
+    }
+    /**
+     * カードのIDmを取得します
+     * @return IDm IDmが戻ります
+     */
+    public IDm getIDm() {
+        return new IDm(this.buffer.getLong(FeliCaDump.OFFSET_IDM));
+    }
+    /**
+     * カードのPMmを取得します
+     * @return PMm PMmが戻ります
+     */
+    public PMm getPMm() {
+        return new PMm(this.buffer.getLong(FeliCaDump.OFFSET_PMM));
+    }
+    /**
+     * システム数を取得します
+     * @return int システム数が戻ります
+     */
+    public int getSystemCount() {
+        return this.systemCount;
+    }
+    /**
+     * システムコードを取得します
+     * @param index システムの番号 (0オリジン)をセット
+     * @return int システムコードが戻ります
+     */
+    public int getSystemCode(int index) {
+        return this.buffer.getShort(this.systemEntry(index)) & 0xffff;
+    }
+    /**
+     * システムのIDmを取得します
+     * @param index システムの番号 (0オリジン)をセット
+     * @return IDm システムのIDmが戻ります
+     */
+    public IDm getSystemIDm(int index) {
+        return new IDm(this.buffer.getLong(this.systemEntry(index) + 16));
+    }
+    /**
+     * システムのサービス数を取得します
+     * @param index システムの番号 (0オリジン)をセット
+     * @return int サービス数が戻ります
+     */
+    public int getServiceCount(int index) {
+        return this.buffer.getInt(this.systemEntry(index) + 8);
+    }
+    /**
+     * サービスコードを取得します
+     * @param index システムの番号 (0オリジン)をセット
+     * @param service システム中のサービスの番号 (0オリジン)をセット
+     * @return int サービスコードが戻ります
+     */
+    public int getServiceCode(int index, int service) {
+        int first = this.buffer.getInt(this.systemEntry(index) + 4);
+        return this.buffer.getShort(this.serviceEntry(first + service)) & 0xffff;
+    }
+    /**
+     * サービスのブロック数を取得します
+     * @param systemCode システムコードをセット
+     * @param serviceCode サービスコードをセット
+     * @return int ブロック数が戻ります (サービスが無い場合は-1)
+     */
+    public int getBlockCount(int systemCode, int serviceCode) {
+        int e = this.findService(systemCode, serviceCode);
+        return e < 0 ? -1 : this.buffer.getInt(this.serviceEntry(e) + 4);
+    }
+    /**
+     * サービスの全ブロックを参照するバッファを取得します
+     * @param systemCode システムコードをセット
+     * @param serviceCode サービスコードをセット
+     * @return ByteBuffer 読み込み専用のバッファが戻ります (サービスが無い場合はnull)
+     */
+    public ByteBuffer getServiceData(int systemCode, int serviceCode) {
+        int e = this.findService(systemCode, serviceCode);
+        if ( e < 0 ) return null;
+        int entry = this.serviceEntry(e);
+        return this.slice(this.buffer.getLong(entry + 8)
+                , this.buffer.getInt(entry + 4) * FeliCaDump.BLOCK_SIZE);
+    }
+    /**
+     * ブロックを参照するバッファを取得します
+     * @param systemCode システムコードをセット
+     * @param serviceCode サービスコードをセット
+     * @param block ブロック番号 (0オリジン)をセット
+     * @return ByteBuffer 16バイトの読み込み専用バッファが戻ります (ブロックが無い場合はnull)
+     */
+    public ByteBuffer getBlock(int systemCode, int serviceCode, int block) {
+        int e = this.findService(systemCode, serviceCode);
+        if ( e < 0 ) return null;
+        int entry = this.serviceEntry(e);
+        if ( block < 0 || block >= this.buffer.getInt(entry + 4) ) return null;
+        return this.slice(this.buffer.getLong(entry + 8) + (long) block * FeliCaDump.BLOCK_SIZE
+                , FeliCaDump.BLOCK_SIZE);
+    }
+    /**
+     * システムの番号を取得します
+     * @param systemCode システムコードをセット
+     * @return int システムの番号が戻ります (無い場合は-1)
+     */
+    public int findSystem(int systemCode) {
+        for ( int i = 0; i < this.systemCount; i++ ) {
+            if ( this.getSystemCode(i) == systemCode ) return i;
+        }
+        return -1;
+    }
+    /**
+     * サービス表の添字を二分探索で取得します
+     * @param systemCode システムコードをセット
+     * @param serviceCode サービスコードをセット
+     * @return int サービス表の添字が戻ります (無い場合は-1)
+     */
+    protected int findService(int systemCode, int serviceCode) {
+        int system = this.findSystem(systemCode);
+        if ( system < 0 ) return -1;
+        int low = this.buffer.getInt(this.systemEntry(system) + 4);
+        int high = low + this.getServiceCount(system) - 1;
+        while ( low <= high ) {
+            int mid = (low + high) >>> 1;
+            int code = this.buffer.getShort(this.serviceEntry(mid)) & 0xffff;
+            if ( code < serviceCode ) {
+                low = mid + 1;
+            } else if ( code > serviceCode ) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    private int systemEntry(int index) {
+        if ( index < 0 || index >= this.systemCount ) {
+            throw new IndexOutOfBoundsException("system : " + index);
+        }
+        return FeliCaDump.HEADER_SIZE + index * FeliCaDump.SYSTEM_ENTRY_SIZE;
+    }
+    private int serviceEntry(int index) {
+        if ( index < 0 || index >= this.serviceCount ) {
+            throw new IndexOutOfBoundsException("service : " + index);
+        }
+        return this.serviceTable + index * FeliCaDump.SERVICE_ENTRY_SIZE;
+    }
+    private ByteBuffer slice(long offset, int length) {
+        if ( offset < 0 || offset + length > this.buffer.capacity() ) {
+            throw new IndexOutOfBoundsException("broken dump. offset : " + offset);
+        }
+        ByteBuffer b = this.buffer.duplicate();
+        b.limit((int) offset + length).position((int) offset);
+        return b.slice().asReadOnlyBuffer();
+    }
+}
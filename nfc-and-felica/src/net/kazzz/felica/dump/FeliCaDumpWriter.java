@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.dump;
+
+import static net.kazzz.felica.lib.FeliCaLib.STATUSFLAG2_ERROR_BLOCK_NUMBER;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.kazzz.felica.FeliCaException;
+import net.kazzz.felica.FeliCaStatusException;
+import net.kazzz.felica.FeliCaTag;
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.PMm;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+import net.kazzz.felica.lib.FeliCaLib.SystemCode;
+
+/**
+ * カードイメージをダンプ形式(FeliCaDump)で書き出すクラスを提供します
+ *
+ * <pre>
+ * dump()で読み込み中のカードから、全システムの認証不要サービスの全ブロックを取得できます。
+ *
+ *  FeliCaDumpWriter.dump(tag).writeTo(new File("card.fcd"));
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaDumpWriter {
+    /**
+     * 書き出すシステムを保持します
+     */
+    static class SystemEntry {
+        final int systemCode;
+        final IDm idm;
+        final Map<Integer, byte[]> services = new TreeMap<Integer, byte[]>(); // サービスコード順
+
+        SystemEntry(int systemCode, IDm idm) {
+            this.systemCode = systemCode;
+            this.idm = idm;
+        }
+    }
+
+    protected final IDm idm;
+    protected final PMm pmm;
+    protected final List<SystemEntry> systems = new ArrayList<SystemEntry>();
+    /**
+     * コンストラクタ
+     *
+     * @param idm カードのIDmをセット
+     * @param pmm カードのPMmをセット
+     */
+    public FeliCaDumpWriter(IDm idm, PMm pmm) {
+        this.idm = idm;
+        this.pmm = pmm;
+    }
+    /**
+     * システムを追加します
+     *
+     * 以降のaddService()はこのシステムへ追加されます
+     * @param systemCode システムコードをセット
+     * @param idm システムのIDmをセット
+     */
+    public void addSystem(int systemCode, IDm idm) {
+        this.systems.add(new SystemEntry(systemCode, idm));
+    }
+    /**
+     * 最後に追加したシステムへサービスのブロックデータを追加します
+     *
+     * @param serviceCode サービスコードをセット
+     * @param data ブロックデータ (16バイトの倍数)をセット
+     */
+    public void addService(int serviceCode, byte[] data) {
+        if ( this.systems.isEmpty() ) {
+            throw new IllegalStateException("no system added");
+        }
+        if ( data.length % FeliCaDump.BLOCK_SIZE != 0 ) {
+            throw new IllegalArgumentException("data length must be a multiple of 16 : " + data.length);
+        }
+        this.systems.get(this.systems.size() - 1).services.put(serviceCode & 0xffff, data);
+    }
+    /**
+     * ファイルへ書き出します
+     *
+     * @param file 書き出すファイルをセット
+     * @throws IOException
+     */
+    public void writeTo(File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            this.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+    /**
+     * ストリームへ書き出します
+     *
+     * @param out 書き出すストリームをセット
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        int serviceCount = 0;
+        for ( SystemEntry s : this.systems ) {
+            serviceCount += s.services.size();
+        }
+        // ヘッダ
+        dos.writeInt(FeliCaDump.MAGIC);
+        dos.writeShort(FeliCaDump.VERSION);
+        dos.writeShort(0);
+        dos.writeLong(this.idm != null ? this.idm.longValue() : 0);
+        dos.writeLong(this.pmm != null ? this.pmm.longValue() : 0);
+        dos.writeInt(this.systems.size());
+        dos.writeInt(serviceCount);
+        // システム表
+        int first = 0;
+        for ( SystemEntry s : this.systems ) {
+            dos.writeShort(s.systemCode);
+            dos.writeShort(0);
+            dos.writeInt(first);
+            dos.writeInt(s.services.size());
+            dos.writeInt(0);
+            dos.writeLong(s.idm != null ? s.idm.longValue() : 0);
+            first += s.services.size();
+        }
+        // サービス表
+        long offset = FeliCaDump.HEADER_SIZE
+            + (long) this.systems.size() * FeliCaDump.SYSTEM_ENTRY_SIZE
+            + (long) serviceCount * FeliCaDump.SERVICE_ENTRY_SIZE;
+        for ( SystemEntry s : this.systems ) {
+            for ( Map.Entry<Integer, byte[]> e : s.services.entrySet() ) {
+                dos.writeShort(e.getKey());
+                dos.writeShort(0);
+                dos.writeInt(e.getValue().length / FeliCaDump.BLOCK_SIZE);
+                dos.writeLong(offset);
+                offset += e.getValue().length;
+            }
+        }
+        // データ領域
+        for ( SystemEntry s : this.systems ) {
+            for ( byte[] data : s.services.values() ) {
+                dos.write(data);
+            }
+        }
+        dos.flush();
+    }
+    /**
+     * ポーリング済みのカードから、全システムの認証不要サービスを読み込みます
+     *
+     * @param tag ポーリング済みのFeliCaTagをセット
+     * @return FeliCaDumpWriter カードイメージを保持したライタが戻ります
+     * @throws FeliCaException
+     */
+    public static FeliCaDumpWriter dump(FeliCaTag tag) throws FeliCaException {
+        if ( tag.getIDm() == null ) {
+            throw new FeliCaException("tag is not polled");
+        }
+        FeliCaDumpWriter writer = new FeliCaDumpWriter(tag.getIDm(), tag.getPMm());
+        for ( SystemCode systemCode : tag.resolveSystems() ) {
+            writer.addSystem(systemCode.getCode(), tag.selectSystem(systemCode.getCode()));
+            for ( ServiceCode serviceCode : tag.getServiceCodeList() ) {
+                if ( serviceCode.encryptNeeded() ) continue;
+                byte[] data = readService(tag, serviceCode);
+                if ( data != null ) {
+                    writer.addService(serviceCode.getCode(), data);
+                }
+            }
+        }
+        return writer;
+    }
+    /**
+     * サービスの全ブロックを読み込みます
+     *
+     * <pre>
+     * ブロック数は判らないため、ブロック番号の不正(0xA8)が返るまで複数ブロック単位で読み込み、
+     * 終端付近では読み込むブロック数を半分にしながら境界を探します。
+     * </pre>
+     *
+     * @param tag ポーリング済みのFeliCaTagをセット
+     * @param serviceCode サービスコードをセット
+     * @return byte[] 全ブロックを連結したデータが戻ります (サービスを読めない場合はnull)
+     * @throws FeliCaException
+     */
+    protected static byte[] readService(FeliCaTag tag, ServiceCode serviceCode)
+            throws FeliCaException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int addr = 0;
+        int n = tag.getMaxReadBlocks();
+        while ( addr < 0x10000 ) {
+            n = Math.min(n, 0x10000 - addr);
+            try {
+                byte[] blocks = tag.readWithoutEncryption(serviceCode, addr, n);
+                out.write(blocks, 0, blocks.length);
+                addr += n;
+            } catch (FeliCaStatusException e) {
+                if ( e.getStatusFlag2() != STATUSFLAG2_ERROR_BLOCK_NUMBER ) {
+                    if ( addr == 0 ) return null; // 読めないサービス
+                    throw e;
+                }
+                if ( n == 1 ) break;
+                n /= 2;
+            }
+        }
+        return out.toByteArray();
+    }
+}
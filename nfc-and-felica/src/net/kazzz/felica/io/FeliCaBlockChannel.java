@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import net.kazzz.felica.AsyncFeliCaTag;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+
+/**
+ * サービスの連続したブロックを先読みしながら順に読み出すチャネルを提供します
+ *
+ * <pre>
+ * ブロックはAsyncFeliCaTagのコマンドキューで複数ブロック単位(バッチ)で読み込まれます。
+ * 1つのバッチを受け取ると直ちに次のバッチの読み込みを投入するため、利用側が前のバッチを
+ * 処理している間に次の送受信が進みます。保持するのは処理中と先読み中の2バッチだけなので、
+ * 大容量のカードやサイクリックサービスでもメモリ使用量は一定です。
+ *
+ *  FeliCaBlockChannel ch = new FeliCaBlockChannel(async, new ServiceCode(0x090f), 0, 20);
+ *  ByteBuffer batch;
+ *  while ( (batch = ch.nextBatch()) != null ) {
+ *      // batchは読み込み専用 (16バイト * ブロック数)
+ *  }
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaBlockChannel implements ReadableByteChannel {
+    public static final int BLOCK_SIZE = 16;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    protected final AsyncFeliCaTag tag;
+    protected final ServiceCode serviceCode;
+    protected final int end;          // 読み込む最終ブロックの次のアドレス
+    protected final int batchBlocks;  // 1バッチのブロック数
+    protected int next;               // 次に読み込みを投入するブロックのアドレス
+    protected Future<byte[]> pending; // 先読み中のバッチ
+    protected int pendingBlocks;      // 先読み中のバッチのブロック数
+    protected ByteBuffer current = EMPTY;
+    protected boolean open = true;
+    protected IOException failure;    // 読み込みの失敗 (以降の呼び出しでもスローします)
+    /**
+     * コンストラクタ
+     *
+     * 1バッチのブロック数はタグの最大読み込みブロック数になります
+     * @param tag 読み込むタグをセット
+     * @param serviceCode サービスコードをセット
+     * @param addr 先頭ブロックのアドレス (0オリジン)をセット
+     * @param count 読み込むブロック数をセット
+     */
+    public FeliCaBlockChannel(AsyncFeliCaTag tag, ServiceCode serviceCode, int addr, int count) {
+        this(tag, serviceCode, addr, count, tag.getTag().getMaxReadBlocks());
+    }
+    /**
+     * コンストラクタ
+     *
+     * @param tag 読み込むタグをセット
+     * @param serviceCode サービスコードをセット
+     * @param addr 先頭ブロックのアドレス (0オリジン)をセット
+     * @param count 読み込むブロック数をセット
+     * @param batchBlocks 1バッチのブロック数をセット
+     */
+    public FeliCaBlockChannel(AsyncFeliCaTag tag, ServiceCode serviceCode
+            , int addr, int count, int batchBlocks) {
+        if ( addr < 0 || count < 0 || addr + count > 0x10000 ) {
+            throw new IllegalArgumentException("addr : " + addr + " count : " + count);
+        }
+        if ( batchBlocks < 1 ) {
+            throw new IllegalArgumentException("batchBlocks : " + batchBlocks);
+        }
+        this.tag = tag;
+        this.serviceCode = serviceCode;
+        this.next = addr;
+        this.end = addr + count;
+        this.batchBlocks = batchBlocks;
+        this.prefetch();
+    }
+    /**
+     * 次のバッチを取得します
+     *
+     * read()で途中まで読んだバッチがある場合は、その残りが戻ります
+     * @return ByteBuffer バッチのデータ(読み込み専用)が戻ります (終端に達した場合はnull)
+     * @throws IOException 読み込みに失敗した場合にスローされます (失敗した後は毎回スローされます)
+     */
+    public synchronized ByteBuffer nextBatch() throws IOException {
+        this.ensureOpen();
+        if ( !this.current.hasRemaining() && !this.fill() ) {
+            return null;
+        }
+        ByteBuffer batch = this.current.slice().asReadOnlyBuffer();
+        this.current.position(this.current.limit());
+        return batch;
+    }
+    /* (non-Javadoc)
+     * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+     */
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        this.ensureOpen();
+        if ( !this.current.hasRemaining() && !this.fill() ) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), this.current.remaining());
+        ByteBuffer src = this.current.duplicate();
+        src.limit(src.position() + n);
+        dst.put(src);
+        this.current.position(this.current.position() + n);
+        return n;
+    }
+    /**
+     * このチャネルから読み出すInputStreamを取得します
+     * @return InputStream 入力ストリームが戻ります
+     */
+    public InputStream newInputStream() {
+        return Channels.newInputStream(this);
+    }
+    /**
+     * まだ読み出していないブロック数を取得します
+     * @return int 残りのブロック数が戻ります (先読み済みで未読のブロックを含みます)
+     */
+    public synchronized int getRemainingBlocks() {
+        return this.end - this.next + this.pendingBlocks
+            + (this.current.remaining() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+    /* (non-Javadoc)
+     * @see java.nio.channels.Channel#isOpen()
+     */
+    @Override
+    public synchronized boolean isOpen() {
+        return this.open;
+    }
+    /* (non-Javadoc)
+     * @see java.nio.channels.Channel#close()
+     */
+    @Override
+    public synchronized void close() {
+        this.open = false;
+        if ( this.pending != null ) {
+            this.pending.cancel(false);
+            this.pending = null;
+            this.pendingBlocks = 0;
+        }
+        this.current = EMPTY;
+    }
+    /**
+     * 次のバッチの読み込みを投入します
+     */
+    protected void prefetch() {
+        if ( this.next >= this.end ) {
+            this.pending = null;
+            this.pendingBlocks = 0;
+            return;
+        }
+        int n = Math.min(this.batchBlocks, this.end - this.next);
+        this.pending = this.tag.readWithoutEncryption(this.serviceCode, this.next, n, null, 0);
+        this.pendingBlocks = n;
+        this.next += n;
+    }
+    /**
+     * 先読み中のバッチを受け取り、次のバッチの読み込みを投入します
+     *
+     * バッチの読み込みに失敗した場合、以降のブロックは読めないため、終端と区別できるよう
+     * 同じ失敗を以後の呼び出しでもスローします
+     * @return boolean バッチを受け取った場合trueが戻ります (終端に達した場合はfalse)
+     * @throws IOException
+     */
+    protected boolean fill() throws IOException {
+        if ( this.failure != null ) {
+            throw this.failure;
+        }
+        if ( this.pending == null ) {
+            return false;
+        }
+        byte[] data;
+        try {
+            data = this.pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading blocks");
+        } catch (ExecutionException e) {
+            this.pending = null;
+            this.pendingBlocks = 0;
+            IOException ioe = new IOException("read failed : " + e.getCause());
+            ioe.initCause(e.getCause());
+            this.failure = ioe;
+            throw ioe;
+        }
+        this.prefetch();
+        this.current = ByteBuffer.wrap(data);
+        return true;
+    }
+    /**
+     * チャネルが開いているかを検査します
+     */
+    protected void ensureOpen() throws IOException {
+        if ( !this.open ) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import net.kazzz.felica.FeliCaException;
+import net.kazzz.felica.FeliCaLiteTag;
+import net.kazzz.felica.command.ReadResponse;
+import net.kazzz.felica.command.WriteResult;
+import net.kazzz.felica.lib.FeliCaLib.MemoryConfigurationBlock;
+
+/**
+ * FeliCa Liteのユーザーブロック(0x00～0x0D)へ書き込むストリームを提供します
+ *
+ * <pre>
+ * 書き込まれたデータはメモリ上に溜め、flush()又はclose()でまとめてカードへ書き出します。
+ * ストリームはメモリコンフィグレーションブロックで書き込み可能なブロックだけを順に埋め、
+ * 読み込み専用のブロックは飛ばします。
+ *
+ * flush()は変更されたブロックだけを、連続するブロック毎にFeliCaLiteTagのまとめ書きで書き出します。
+ * FeliCa Liteは1コマンドで1ブロックしか書き込めないため、1ブロックにつき1フレームになりますが、
+ * write()の呼び出し回数には依存しません。途中までしか書かれていないブロックは、
+ * カードの内容を読み込んで残りを補ってから書き出します。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaLiteOutputStream extends OutputStream implements WritableByteChannel {
+    public static final int BLOCK_SIZE = 16;
+    /** ユーザーブロックの数 (0x00～0x0D) */
+    public static final int USER_BLOCKS = 14;
+
+    protected final FeliCaLiteTag tag;
+    protected final int[] blocks;    // ストリームが書き込むブロック番号 (書き込み可能なブロックのみ)
+    protected final byte[] buffer;   // blocksの順に並べたブロックデータ
+    protected final boolean[] dirty; // 未書き出しのブロック
+    protected final int[] filled;    // ブロック中で書き込まれたバイト数
+    protected int position;
+    protected boolean open = true;
+    /**
+     * コンストラクタ
+     *
+     * メモリコンフィグレーションブロックをカードから読み込みます
+     * @param tag 書き込むFeliCaLiteTagをセット
+     * @throws FeliCaException
+     */
+    public FeliCaLiteOutputStream(FeliCaLiteTag tag) throws FeliCaException {
+        this(tag, 0, tag.getMemoryConfigBlock());
+    }
+    /**
+     * コンストラクタ
+     *
+     * @param tag 書き込むFeliCaLiteTagをセット
+     * @param startBlock 書き込みを開始するブロック番号をセット
+     * @param mc メモリコンフィグレーションブロックをセット (nullの場合は全ブロックを書き込み可能とみなします)
+     */
+    public FeliCaLiteOutputStream(FeliCaLiteTag tag, int startBlock, MemoryConfigurationBlock mc) {
+        if ( startBlock < 0 || startBlock >= USER_BLOCKS ) {
+            throw new IllegalArgumentException("startBlock : " + startBlock);
+        }
+        int[] writable = new int[USER_BLOCKS - startBlock];
+        int n = 0;
+        for ( int b = startBlock; b < USER_BLOCKS; b++ ) {
+            if ( mc == null || mc.isWritable(b) ) {
+                writable[n++] = b;
+            }
+        }
+        this.tag = tag;
+        this.blocks = Arrays.copyOf(writable, n);
+        this.buffer = new byte[n * BLOCK_SIZE];
+        this.dirty = new boolean[n];
+        this.filled = new int[n];
+    }
+    /**
+     * 書き込み可能な残りのバイト数を取得します
+     * @return int 残りのバイト数が戻ります
+     */
+    public synchronized int remaining() {
+        return this.buffer.length - this.position;
+    }
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public synchronized void write(int b) throws IOException {
+        this.ensureCapacity(1);
+        this.mark(this.position, 1);
+        this.buffer[this.position++] = (byte) b;
+    }
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if ( off < 0 || len < 0 || off + len > b.length ) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.ensureCapacity(len);
+        this.mark(this.position, len);
+        System.arraycopy(b, off, this.buffer, this.position, len);
+        this.position += len;
+    }
+    /* (non-Javadoc)
+     * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+     */
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        this.ensureCapacity(len);
+        this.mark(this.position, len);
+        src.get(this.buffer, this.position, len);
+        this.position += len;
+        return len;
+    }
+    /**
+     * 変更されたブロックをカードへ書き出します
+     *
+     * @throws IOException 書き込みに失敗した場合にスローされます
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if ( !this.open ) {
+            throw new ClosedChannelException();
+        }
+        try {
+            for ( int i = 0; i < this.blocks.length; ) {
+                if ( !this.dirty[i] ) {
+                    i++;
+                    continue;
+                }
+                int j = i;
+                while ( j < this.blocks.length && this.dirty[j]
+                        && this.blocks[j] - this.blocks[i] == j - i ) {
+                    if ( this.filled[j] < BLOCK_SIZE ) {
+                        this.merge(j);
+                    }
+                    j++;
+                }
+                WriteResult r = this.tag.writeWithoutEncryption(this.blocks[i]
+                        , Arrays.copyOfRange(this.buffer, i * BLOCK_SIZE, j * BLOCK_SIZE));
+                if ( !r.isSuccess() ) {
+                    throw new IOException("write failed : " + r);
+                }
+                Arrays.fill(this.dirty, i, j, false);
+                i = j;
+            }
+        } catch (FeliCaException e) {
+            IOException ioe = new IOException("write failed : " + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+    /* (non-Javadoc)
+     * @see java.nio.channels.Channel#isOpen()
+     */
+    @Override
+    public synchronized boolean isOpen() {
+        return this.open;
+    }
+    /**
+     * 変更されたブロックを書き出してストリームを閉じます
+     *
+     * @throws IOException 書き込みに失敗した場合にスローされます
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if ( !this.open ) return;
+        try {
+            this.flush();
+        } finally {
+            this.open = false;
+        }
+    }
+    /**
+     * 書き込まれた範囲のブロックを変更済みにします
+     */
+    protected void mark(int from, int len) {
+        for ( int p = from; p < from + len; ) {
+            int i = p / BLOCK_SIZE;
+            int n = Math.min(from + len, (i + 1) * BLOCK_SIZE) - p;
+            this.dirty[i] = true;
+            this.filled[i] = Math.max(this.filled[i], p + n - i * BLOCK_SIZE);
+            p += n;
+        }
+    }
+    /**
+     * 途中までしか書かれていないブロックの残りをカードの内容で補います
+     */
+    protected void merge(int i) throws FeliCaException {
+        ReadResponse r = this.tag.readWithoutEncryption((byte) this.blocks[i]);
+        byte[] current = r.getBlockData();
+        if ( r.getStatusFlag1() != 0 || current == null || current.length < BLOCK_SIZE ) {
+            throw new FeliCaException("cannot read block " + this.blocks[i] + " to merge");
+        }
+        int start = this.filled[i];
+        System.arraycopy(current, start, this.buffer, i * BLOCK_SIZE + start, BLOCK_SIZE - start);
+        this.filled[i] = BLOCK_SIZE;
+    }
+    /**
+     * ストリームが開いており、書き込む余地があるかを検査します
+     */
+    protected void ensureCapacity(int len) throws IOException {
+        if ( !this.open ) {
+            throw new ClosedChannelException();
+        }
+        if ( len > this.buffer.length - this.position ) {
+            throw new IOException("end of user blocks. remaining " + (this.buffer.length - this.position)
+                    + " bytes but " + len);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.lib;
+
+import java.nio.ByteBuffer;
+
+import net.kazzz.felica.IFeliCaByteData;
+import net.kazzz.nfc.NfcException;
+
+/**
+ * フレームのエンコード用バッファを使い回すトランスポートの基底クラスを提供します
+ * 
+ * <pre>
+ * NfcF#transceive(byte[])は丁度の長さの配列を要求するため、フレーム長毎に
+ * 配列を1つずつ保持して再利用します。ポーリングのように同じ長さのフレームを
+ * 繰り返し送る場合、送信側ではオブジェクトを生成しません。
+ * </pre>
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public abstract class AbstractFeliCaTransport implements IFeliCaTransport {
+    //フレーム長(1～255)毎の送信バッファ
+    private final ByteBuffer[] frameBuffers = new ByteBuffer[256];
+
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.lib.IFeliCaTransport#transceive(net.kazzz.felica.IFeliCaByteData)
+     */
+    @Override
+    public synchronized byte[] transceive(IFeliCaByteData command) throws NfcException {
+        int length = command.encodedLength();
+        if ( length <= 0 || length >= this.frameBuffers.length )
+            throw new NfcException("illegal frame length : " + length);
+        ByteBuffer buff = this.frameBuffers[length];
+        if ( buff == null ) {
+            buff = ByteBuffer.allocate(length);
+            this.frameBuffers[length] = buff;
+        }
+        buff.clear();
+        command.writeTo(buff);
+        return this.transceive(buff.array());
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.lib;
+
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_AUTHENTICATION1;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_AUTHENTICATION2;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_POLLING;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_READ;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_READ_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_REQUEST_RESPONSE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_REQUEST_SERVICE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_REQUEST_SYSTEMCODE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_SEARCH_SERVICECODE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_WRITE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_WRITE_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_AUTHENTICATION1;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_AUTHENTICATION2;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_POLLING;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_READ;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_READ_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_REQUEST_RESPONSE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_REQUEST_SERVICE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_REQUEST_SYSTEMCODE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_SEARCH_SERVICECODE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_WRITE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_WRITE_WO_ENCRYPTION;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * コマンドコードの登録簿を提供します
+ *
+ * <pre>
+ * 符号なしのコード値(0～255)を添字とする256要素の配列で、コマンドとそのレスポンスの定義を保持します。
+ * 参照はロックもボクシングも伴いません。登録は一度だけ行え、同じコードを別の定義で
+ * 上書きすることはできません。拡張コマンド(Push等)はregister()で追加します。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public final class FeliCaCommandRegistry {
+    /** 既定の最大フレーム長 (データ長バイトを含みます) */
+    public static final int MAX_FRAME_SIZE = 255;
+
+    /**
+     * コマンド(又はレスポンス)の定義クラスを提供します
+     */
+    public static final class CommandInfo {
+        final byte code;
+        final String name;
+        final byte responseCode;
+        final boolean response;
+        final boolean idempotent;
+        final int maxFrameSize;
+
+        CommandInfo(byte code, String name, byte responseCode
+                , boolean response, boolean idempotent, int maxFrameSize) {
+            this.code = code;
+            this.name = name;
+            this.responseCode = responseCode;
+            this.response = response;
+            this.idempotent = idempotent;
+            this.maxFrameSize = maxFrameSize;
+        }
+        /**
+         * コードを取得します
+         * @return byte コマンドコード又はレスポンスコードが戻ります
+         */
+        public byte getCode() {
+            return this.code;
+        }
+        /**
+         * 名前を取得します
+         * @return String コマンド名が戻ります
+         */
+        public String getName() {
+            return this.name;
+        }
+        /**
+         * 期待するレスポンスコードを取得します
+         * @return byte レスポンスコードが戻ります (レスポンスの定義の場合は自身のコード)
+         */
+        public byte getResponseCode() {
+            return this.responseCode;
+        }
+        /**
+         * レスポンスの定義か否かを検査します
+         * @return boolean レスポンスの定義の場合trueが戻ります
+         */
+        public boolean isResponse() {
+            return this.response;
+        }
+        /**
+         * 再送しても結果が変わらないコマンドか否かを検査します
+         * @return boolean 冪等な場合trueが戻ります
+         */
+        public boolean isIdempotent() {
+            return this.idempotent;
+        }
+        /**
+         * 最大フレーム長を取得します
+         * @return int 最大フレーム長(データ長バイトを含みます)が戻ります
+         */
+        public int getMaxFrameSize() {
+            return this.maxFrameSize;
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    private static final AtomicReferenceArray<CommandInfo> commands =
+        new AtomicReferenceArray<CommandInfo>(256);
+
+    //command code and name dictionary
+    static {
+        register(COMMAND_POLLING, "Polling", RESPONSE_POLLING, true, MAX_FRAME_SIZE);
+        register(COMMAND_REQUEST_SERVICE, "Request Service", RESPONSE_REQUEST_SERVICE, true, MAX_FRAME_SIZE);
+        register(COMMAND_REQUEST_RESPONSE, "Request Response", RESPONSE_REQUEST_RESPONSE, true, MAX_FRAME_SIZE);
+        register(COMMAND_READ_WO_ENCRYPTION, "Read Without Encryption", RESPONSE_READ_WO_ENCRYPTION, true, MAX_FRAME_SIZE);
+        register(COMMAND_WRITE_WO_ENCRYPTION, "Write Without Encryption", RESPONSE_WRITE_WO_ENCRYPTION, false, MAX_FRAME_SIZE);
+        register(COMMAND_SEARCH_SERVICECODE, "Search Service", RESPONSE_SEARCH_SERVICECODE, true, MAX_FRAME_SIZE);
+        register(COMMAND_REQUEST_SYSTEMCODE, "Request System Code", RESPONSE_REQUEST_SYSTEMCODE, true, MAX_FRAME_SIZE);
+        register(COMMAND_AUTHENTICATION1, "Authentication1", RESPONSE_AUTHENTICATION1, false, MAX_FRAME_SIZE);
+        register(COMMAND_AUTHENTICATION2, "Authentication2", RESPONSE_AUTHENTICATION2, false, MAX_FRAME_SIZE);
+        register(COMMAND_READ, "Read", RESPONSE_READ, true, MAX_FRAME_SIZE);
+        register(COMMAND_WRITE, "Write", RESPONSE_WRITE, false, MAX_FRAME_SIZE);
+    }
+
+    private FeliCaCommandRegistry() {}
+    /**
+     * コマンドとそのレスポンスを登録します
+     *
+     * 同じ定義での再登録は無視されます
+     *
+     * @param commandCode コマンドコードをセット
+     * @param name コマンド名をセット
+     * @param responseCode レスポンスコードをセット
+     * @param idempotent 再送しても結果が変わらない場合trueをセット
+     * @param maxFrameSize 最大フレーム長(データ長バイトを含みます)をセット
+     * @return CommandInfo 登録されたコマンドの定義が戻ります
+     * @throws IllegalStateException コードが別の定義で登録済みの場合にスローされます
+     */
+    public static CommandInfo register(byte commandCode, String name, byte responseCode
+            , boolean idempotent, int maxFrameSize) {
+        if ( name == null )
+            throw new IllegalArgumentException("name");
+        if ( maxFrameSize < 2 || maxFrameSize > MAX_FRAME_SIZE )
+            throw new IllegalArgumentException("maxFrameSize : " + maxFrameSize);
+        CommandInfo command = new CommandInfo(commandCode, name, responseCode
+                , false, idempotent, maxFrameSize);
+        CommandInfo response = new CommandInfo(responseCode, name + "(response)", responseCode
+                , true, idempotent, MAX_FRAME_SIZE);
+        synchronized (commands) {
+            CommandInfo c = commands.get(commandCode & 0xff);
+            CommandInfo r = commands.get(responseCode & 0xff);
+            if ( c != null && !same(c, command) )
+                throw new IllegalStateException("commandCode : " + Util.getHexString(commandCode)
+                        + " is already registered as " + c.name);
+            if ( r != null && !same(r, response) )
+                throw new IllegalStateException("responseCode : " + Util.getHexString(responseCode)
+                        + " is already registered as " + r.name);
+            if ( c != null ) return c;
+            commands.set(responseCode & 0xff, response);
+            commands.set(commandCode & 0xff, command);
+            return command;
+        }
+    }
+    /**
+     * コードの定義を取得します
+     *
+     * @param code コマンドコード又はレスポンスコードをセット
+     * @return CommandInfo 定義が戻ります (未登録の場合はnullが戻ります)
+     */
+    public static CommandInfo get(byte code) {
+        return commands.get(code & 0xff);
+    }
+    /**
+     * コマンドコードとして登録されているかを検査します
+     *
+     * @param commandCode コマンドコードをセット
+     * @return boolean 登録されている場合trueが戻ります
+     */
+    public static boolean isCommand(byte commandCode) {
+        CommandInfo c = commands.get(commandCode & 0xff);
+        return c != null && !c.response;
+    }
+    /**
+     * コードの名前を取得します
+     *
+     * @param code コマンドコード又はレスポンスコードをセット
+     * @return String 名前が戻ります (未登録の場合はnullが戻ります)
+     */
+    public static String getName(byte code) {
+        CommandInfo c = commands.get(code & 0xff);
+        return c != null ? c.name : null;
+    }
+    /**
+     * 2つの定義が同じかを検査します
+     */
+    private static boolean same(CommandInfo a, CommandInfo b) {
+        return a.code == b.code && a.name.equals(b.name) && a.responseCode == b.responseCode
+            && a.response == b.response && a.idempotent == b.idempotent
+            && a.maxFrameSize == b.maxFrameSize;
+    }
+}
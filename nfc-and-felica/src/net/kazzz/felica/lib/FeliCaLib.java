@@ -14,8 +14,6 @@ package net.kazzz.felica.lib;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 import net.kazzz.felica.FeliCaException;
 import net.kazzz.felica.IFeliCaByteData;
@@ -137,34 +135,22 @@ public final class FeliCaLib {
     public static final int STATUSFLAG2_ERROR_FLOWN     = 0x02; 
     public static final int STATUSFLAG2_ERROR_MEMORY    = 0x70; 
     public static final int STATUSFLAG2_ERROR_WRITELIMIT= 0x71; 
+    public static final int STATUSFLAG2_ERROR_SERVICE_COUNT = 0xa1; // サービス数が不正
+    public static final int STATUSFLAG2_ERROR_BLOCK_COUNT   = 0xa2; // ブロック数が不正
+    public static final int STATUSFLAG2_ERROR_SERVICE_ORDER = 0xa3; // サービスコードリスト順が不正
+    public static final int STATUSFLAG2_ERROR_SERVICE_CODE  = 0xa6; // サービスコードが不正
+    public static final int STATUSFLAG2_ERROR_BLOCK_NUMBER  = 0xa8; // ブロック番号が不正
+
+    // Request Service
+    public static final int KEY_VERSION_NONE = 0xffff; // 存在しないエリア/サービスの鍵バージョン
+   
+    // 応答タイムアウト
+    public static final double RESPONSE_TIME_UNIT = 256.0 * 16 / 13560; // T0 = 256×16/fc (約0.302ms)
+    public static final int POLLING_TIMEOUT = 5;              // Polling (タイムスロット0) の応答待ち時間 (ミリ秒)
+    public static final double POLLING_SLOT_TIME = 1.208;     // Pollingのタイムスロット1つ分の時間 (ミリ秒)
+    public static final double TIMEOUT_MARGIN_RATIO = 1.25;   // 最大応答時間に対する余裕率
+    public static final int TIMEOUT_MARGIN = 3;               // 最大応答時間に加える余裕 (ミリ秒)
    
-    public static final Map<Byte, String> commandMap = new HashMap<Byte, String>();
-    
-    //command code and name dictionary
-    static {
-        commandMap.put(COMMAND_POLLING, "Polling");
-        commandMap.put(RESPONSE_POLLING, "Polling(responce)");
-        commandMap.put(COMMAND_REQUEST_SERVICE, "Request Service");
-        commandMap.put(RESPONSE_REQUEST_SERVICE, "Request Service(response)");
-        commandMap.put(COMMAND_REQUEST_RESPONSE, "Request Response");
-        commandMap.put(RESPONSE_REQUEST_RESPONSE, "Request Response(response)");
-        commandMap.put(COMMAND_READ_WO_ENCRYPTION, "Read Without Encryption");
-        commandMap.put(RESPONSE_READ_WO_ENCRYPTION, "Read Without Encryption(response)");
-        commandMap.put(COMMAND_WRITE_WO_ENCRYPTION, "Write Without Encryption");
-        commandMap.put(RESPONSE_WRITE_WO_ENCRYPTION, "Write Without Encryption(response)");
-        commandMap.put(COMMAND_SEARCH_SERVICECODE, "Search Service");
-        commandMap.put(RESPONSE_SEARCH_SERVICECODE, "Search Service(response)");
-        commandMap.put(COMMAND_REQUEST_SYSTEMCODE, "Request System Code");
-        commandMap.put(RESPONSE_REQUEST_SYSTEMCODE, "Request System Code(response)");
-        commandMap.put(COMMAND_AUTHENTICATION1, "Authentication1");
-        commandMap.put(RESPONSE_AUTHENTICATION1, "Authentication1(response)");
-        commandMap.put(COMMAND_AUTHENTICATION2, "Authentication2");
-        commandMap.put(RESPONSE_AUTHENTICATION2, "Authentication2(response)");
-        commandMap.put(COMMAND_READ, "Read");
-        commandMap.put(RESPONSE_READ, "Read(response)");
-        commandMap.put(COMMAND_WRITE, "Write");
-        commandMap.put(RESPONSE_WRITE, "Write(response)");
-    }
     /**
      * 
      * FeliCa コマンドパケットクラスを提供します
@@ -202,11 +188,12 @@ public final class FeliCaLib {
          * @throws FeliCaException 
          */
         public CommandPacket(byte commandCode, final byte... data) throws FeliCaException {
-            if ( !commandMap.containsKey(commandCode))
+            FeliCaCommandRegistry.CommandInfo info = FeliCaCommandRegistry.get(commandCode);
+            if ( info == null )
                 throw new FeliCaException("commandCode : " + commandCode + " not supported.");
             this.commandCode = commandCode;
             if ( data.length >= 8 ) {
-                this.idm = new IDm(Arrays.copyOfRange(data, 0, 8));
+                this.idm = new IDm(data, 0);
                 this.data = Arrays.copyOfRange(data, 8, data.length);
             } else {
                 this.idm = null;
@@ -214,8 +201,8 @@ public final class FeliCaLib {
             }
             this.length = data.length + 2;
             
-            if ( this.length > 255 )
-                throw new FeliCaException("command data too long (less than 255Byte)");        
+            if ( this.length > info.getMaxFrameSize() )
+                throw new FeliCaException("command data too long (less than " + info.getMaxFrameSize() + "byte)");        
         }
         /**
          * コンストラクタ
@@ -226,14 +213,15 @@ public final class FeliCaLib {
          * @throws FeliCaException 
          */
         public CommandPacket(byte commandCode, IDm idm, final byte... data) throws FeliCaException {
-            if ( !commandMap.containsKey(commandCode))
+            FeliCaCommandRegistry.CommandInfo info = FeliCaCommandRegistry.get(commandCode);
+            if ( info == null )
                 throw new FeliCaException("commandCode : " + commandCode + " not supported.");
             this.commandCode = commandCode;
             this.idm = idm;
             this.data = data;
-            this.length = idm.getBytes().length + data.length + 2;
-            if ( this.length > 255 )
-                throw new FeliCaException("command data too long (less than 255byte)");        
+            this.length = idm.encodedLength() + data.length + 2;
+            if ( this.length > info.getMaxFrameSize() )
+                throw new FeliCaException("command data too long (less than " + info.getMaxFrameSize() + "byte)");        
         }
         /**
          * コンストラクタ
@@ -244,14 +232,15 @@ public final class FeliCaLib {
          * @throws FeliCaException 
          */
         public CommandPacket(byte commandCode, byte[] idm, final byte... data) throws FeliCaException {
-            if ( !commandMap.containsKey(commandCode))
+            FeliCaCommandRegistry.CommandInfo info = FeliCaCommandRegistry.get(commandCode);
+            if ( info == null )
                 throw new FeliCaException("commandCode : " + commandCode + " not supported.");
             this.commandCode = commandCode;
             this.idm = new IDm(idm);
             this.data = data;
             this.length = idm.length + data.length + 2;
-            if ( this.length > 255 )
-                throw new FeliCaException("command data too long (less than 255byte)");        
+            if ( this.length > info.getMaxFrameSize() )
+                throw new FeliCaException("command data too long (less than " + info.getMaxFrameSize() + "byte)");        
         }
         
         /* (non-Javadoc)
@@ -266,14 +255,27 @@ public final class FeliCaLib {
          * @return byte[] このデータのバイト列表現を戻します
          */
         public byte[] getBytes() {
-            ByteBuffer buff = ByteBuffer.allocate(this.length);
-            byte length = (byte)this.length;
+            byte[] bytes = new byte[this.length];
+            this.writeTo(ByteBuffer.wrap(bytes));
+            return bytes;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+         */
+        @Override
+        public int encodedLength() {
+            return this.length;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+         */
+        @Override
+        public void writeTo(ByteBuffer buffer) {
+            buffer.put((byte)this.length).put(this.commandCode);
             if ( this.idm != null ) {
-                buff.put(length).put(this.commandCode).put(this.idm.getBytes()).put(this.data);
-            } else {
-                buff.put(length).put(this.commandCode).put(this.data);
+                this.idm.writeTo(buffer);
             }
-            return buff.array();
+            buffer.put(this.data);
         }
         /* (non-Javadoc)
          * @see java.lang.Object#toString()
@@ -282,7 +284,7 @@ public final class FeliCaLib {
         public String toString() {
            StringBuilder sb = new StringBuilder();
            sb.append("FeliCa コマンドパケット \n");
-           sb.append(" コマンド名:" + commandMap.get(this.commandCode)  +  "\n");
+           sb.append(" コマンド名:" + FeliCaCommandRegistry.getName(this.commandCode)  +  "\n");
            sb.append(" データ長: " + Util.getHexString((byte)(this.length & 0xff)) + "\n");
            sb.append(" コマンドコード : " + Util.getHexString(this.commandCode) +  "\n");
            if ( this.idm != null )
@@ -310,7 +312,20 @@ public final class FeliCaLib {
          * @param response 他のレスポンスをセット
          */
         public CommandResponse(CommandResponse response) {
-            this(response != null ? response.getBytes() : null);
+            //解析済みのフィールドを共有し、フレームを再解析しません
+            if ( response != null ) {
+                this.rawData = response.rawData;
+                this.length = response.length;
+                this.responseCode = response.responseCode;
+                this.idm = response.idm;
+                this.data = response.data;
+            } else {
+                this.rawData = null;
+                this.length = 0; 
+                this.responseCode = 0;
+                this.idm = null;
+                this.data = null;
+            }
         }
         /**
          * コンストラクタ
@@ -322,7 +337,7 @@ public final class FeliCaLib {
                 this.rawData = data;
                 this.length = data[0] & 0xff; 
                 this.responseCode = data[1];
-                this.idm = new IDm(Arrays.copyOfRange(data, 2, 10));
+                this.idm = new IDm(data, 2);
                 this.data = Arrays.copyOfRange(data, 10, data.length);
             } else {
                 this.rawData = null;
@@ -346,6 +361,22 @@ public final class FeliCaLib {
         public byte[] getBytes() {
             return this.rawData;
         }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+         */
+        @Override
+        public int encodedLength() {
+            return this.rawData != null ? this.rawData.length : 0;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+         */
+        @Override
+        public void writeTo(ByteBuffer buffer) {
+            if ( this.rawData != null ) {
+                buffer.put(this.rawData);
+            }
+        }
         /* (non-Javadoc)
          * @see java.lang.Object#toString()
          */
@@ -354,7 +385,7 @@ public final class FeliCaLib {
            StringBuilder sb = new StringBuilder();
            sb.append(" \n\n");
            sb.append("FeliCa レスポンスパケット \n");
-           sb.append(" コマンド名:" + commandMap.get(this.responseCode)  +  "\n");
+           sb.append(" コマンド名:" + FeliCaCommandRegistry.getName(this.responseCode)  +  "\n");
            sb.append(" データ長: " + Util.getHexString((byte)(this.length & 0xff)) + "\n");
            sb.append(" レスポンスコード: " + Util.getHexString(this.responseCode) + "\n");
            sb.append(" "+ this.idm.toString() + "\n");
@@ -366,6 +397,11 @@ public final class FeliCaLib {
      * 
      * FeliCa IDmクラスを提供します
      * 
+     * <pre>
+     * 8バイトのIDmを1つのlong(ビッグエンディアン)で保持する値型です。
+     * equals/hashCodeを実装しているため、マップのキーにそのまま使えます。
+     * </pre>
+     * 
      * @author Kazzz
      * @date 2011/01/20
      * @since Android API Level 9
@@ -382,26 +418,70 @@ public final class FeliCaLib {
                     return new IDm[size];
                 }
             };
-        final byte[] manufactureCode;
-        final byte[] cardIdentification;
+        final long value; // 製造者コード(2byte) + カード識別番号(6byte)
         /**
          * コンストラクタ
          * @param in 入力するパーセル化オブジェクトをセット
          */
         public IDm(Parcel in) {
-            this.manufactureCode = new byte[in.readInt()];
-            in.readByteArray(this.manufactureCode);
-            this.cardIdentification = new byte[in.readInt()];
-            in.readByteArray(this.cardIdentification);
+            this.value = in.readLong();
         }
         /**
          * コンストラクタ 
          * @param bytes IDmの格納されているバイト列をセットします
          */
         public IDm(byte[] bytes) {
-            this.manufactureCode = new byte[]{bytes[0], bytes[1]};
-            this.cardIdentification = 
-                new byte[]{bytes[2], bytes[3], bytes[4], bytes[5], bytes[6], bytes[7]};
+            this(bytes, 0);
+        }
+        /**
+         * コンストラクタ 
+         * @param bytes IDmの格納されているバイト列をセットします
+         * @param offset IDmの開始位置をセットします
+         */
+        public IDm(byte[] bytes, int offset) {
+            this.value = Util.toLong(bytes, offset);
+        }
+        /**
+         * コンストラクタ 
+         * @param value ビッグエンディアンで詰めたIDmをセットします
+         */
+        public IDm(long value) {
+            this.value = value;
+        }
+        /**
+         * IDmを64bit値として取得します
+         * @return long ビッグエンディアンで詰めたIDmが戻ります
+         */
+        public long longValue() {
+            return this.value;
+        }
+        /**
+         * 製造者コードを取得します
+         * @return int 製造者コード(2byte)が戻ります
+         */
+        public int getManufactureCode() {
+            return (int) (this.value >>> 48) & 0xffff;
+        }
+        /**
+         * カード識別番号中の製造器コードを取得します
+         * @return int 製造器コード(2byte)が戻ります
+         */
+        public int getMachineCode() {
+            return (int) (this.value >>> 32) & 0xffff;
+        }
+        /**
+         * カード識別番号中の日付を取得します
+         * @return int 日付(2byte)が戻ります
+         */
+        public int getDateCode() {
+            return (int) (this.value >>> 16) & 0xffff;
+        }
+        /**
+         * カード識別番号中のシリアル番号を取得します
+         * @return int シリアル番号(2byte)が戻ります
+         */
+        public int getSerialNumber() {
+            return (int) this.value & 0xffff;
         }
         /* (non-Javadoc)
          * @see android.os.Parcelable#describeContents()
@@ -415,25 +495,45 @@ public final class FeliCaLib {
          */
         @Override
         public void writeToParcel(Parcel dest, int flags) {
-            //配列長を先に書きだしておく
-            dest.writeInt(this.manufactureCode.length);
-            dest.writeByteArray(this.manufactureCode);
-            
-            //配列長を先に書きだしておく
-            dest.writeInt(this.cardIdentification.length);
-            dest.writeByteArray(this.cardIdentification);
+            dest.writeLong(this.value);
         }
         /* (non-Javadoc)
          * @see net.felica.IFeliCaByteData#getBytes()
          */
         @Override
         public byte[] getBytes() {
-            ByteBuffer buff = ByteBuffer.allocate(
-                    this.manufactureCode.length + this.cardIdentification.length);
-            buff.put(this.manufactureCode).put(this.cardIdentification);
-            return buff.array();
+            byte[] bytes = new byte[this.encodedLength()];
+            this.writeTo(ByteBuffer.wrap(bytes));
+            return bytes;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+         */
+        @Override
+        public int encodedLength() {
+            return 8;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+         */
+        @Override
+        public void writeTo(ByteBuffer buffer) {
+            Util.putLong(buffer, this.value);
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return (int) (this.value ^ (this.value >>> 32));
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof IDm && ((IDm) obj).value == this.value;
         }
-        
         /* (non-Javadoc)
          * @see java.lang.Object#toString()
          */
@@ -441,11 +541,11 @@ public final class FeliCaLib {
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("IDm (8byte) : " + Util.getHexString(this.getBytes()) + "\n");
-            sb.append(" 製造者コード: " + Util.getHexString(this.manufactureCode) + "\n");
+            sb.append(" 製造者コード: " + String.format("%04X", this.getManufactureCode()) + "\n");
             sb.append(" カード識別番号:\n");
-            sb.append("   製造器:" + Util.getHexString(this.cardIdentification, 0, 2) + "\n");
-            sb.append("   日付:" + Util.getHexString(this.cardIdentification, 2, 2) + "\n");
-            sb.append("   シリアル:" + Util.getHexString(this.cardIdentification, 4, 2) + "\n");
+            sb.append("   製造器:" + String.format("%04X", this.getMachineCode()) + "\n");
+            sb.append("   日付:" + String.format("%04X", this.getDateCode()) + "\n");
+            sb.append("   シリアル:" + String.format("%04X", this.getSerialNumber()) + "\n");
             return sb.toString();
         }
 
@@ -454,6 +554,10 @@ public final class FeliCaLib {
      * 
      * FeliCa PMmクラスを提供します
      * 
+     * <pre>
+     * 8バイトのPMmを1つのlong(ビッグエンディアン)で保持する値型です。
+     * </pre>
+     * 
      * @author Kazzz
      * @date 2011/01/20
      * @since Android API Level 9
@@ -470,27 +574,71 @@ public final class FeliCaLib {
                     return new PMm[size];
                 }
             };
-        final byte[] icCode;              // ROM種別, IC種別
-        final byte[] maximumResponseTime; // 最大応答時間
+        final long value; // ICコード(2byte) + 最大応答時間(6byte)
         /**
          * コンストラクタ
          * @param in 入力するパーセル化オブジェクトをセット
          */
         public PMm(Parcel in) {
-            this.icCode = new byte[in.readInt()];
-            in.readByteArray(this.icCode);
-            
-            this.maximumResponseTime = new byte[in.readInt()];
-            in.readByteArray(this.maximumResponseTime);
+            this.value = in.readLong();
         }
        /**
          * コンストラクタ
          * @param bytes バイト列をセット
          */
         public PMm(byte[] bytes) {
-            this.icCode = new byte[]{bytes[0], bytes[1]};
-            this.maximumResponseTime = 
-                new byte[]{bytes[2], bytes[3], bytes[4], bytes[5], bytes[6], bytes[7]};
+            this(bytes, 0);
+        }
+        /**
+         * コンストラクタ
+         * @param bytes バイト列をセット
+         * @param offset PMmの開始位置をセット
+         */
+        public PMm(byte[] bytes, int offset) {
+            this.value = Util.toLong(bytes, offset);
+        }
+        /**
+         * コンストラクタ 
+         * @param value ビッグエンディアンで詰めたPMmをセットします
+         */
+        public PMm(long value) {
+            this.value = value;
+        }
+        /**
+         * PMmを64bit値として取得します
+         * @return long ビッグエンディアンで詰めたPMmが戻ります
+         */
+        public long longValue() {
+            return this.value;
+        }
+        /**
+         * ICコードを取得します
+         * @return int ICコード(ROM種別 + IC種別)が戻ります
+         */
+        public int getICCode() {
+            return (int) (this.value >>> 48) & 0xffff;
+        }
+        /**
+         * ROM種別を取得します
+         * @return int ROM種別が戻ります
+         */
+        public int getRomType() {
+            return (int) (this.value >>> 56) & 0xff;
+        }
+        /**
+         * IC種別を取得します
+         * @return int IC種別が戻ります
+         */
+        public int getICType() {
+            return (int) (this.value >>> 48) & 0xff;
+        }
+        /**
+         * 最大応答時間パラメタを取得します
+         * @param index パラメタの位置 (0:B3 ～ 5:B8)をセット
+         * @return int パラメタ(1byte)が戻ります
+         */
+        public int getMaximumResponseTimeParam(int index) {
+            return (int) (this.value >>> (8 * (5 - index))) & 0xff;
         }
         /* (non-Javadoc)
          * @see android.os.Parcelable#describeContents()
@@ -504,25 +652,98 @@ public final class FeliCaLib {
          */
         @Override
         public void writeToParcel(Parcel dest, int flags) {
-            //配列長を先に書きだす
-            dest.writeInt(this.icCode.length);
-            dest.writeByteArray(this.icCode);
-
-            //配列長を先に書きだす
-            dest.writeInt(this.maximumResponseTime.length);
-            dest.writeByteArray(this.maximumResponseTime);
+            dest.writeLong(this.value);
         }
         /* (non-Javadoc)
          * @see net.felica.IFeliCaByteData#getBytes()
          */
         @Override
         public byte[] getBytes() {
-            ByteBuffer buff = ByteBuffer.allocate(
-                    this.icCode.length + this.maximumResponseTime.length);
-            buff.put(this.icCode).put(this.maximumResponseTime);
-            return buff.array();
+            byte[] bytes = new byte[this.encodedLength()];
+            this.writeTo(ByteBuffer.wrap(bytes));
+            return bytes;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+         */
+        @Override
+        public int encodedLength() {
+            return 8;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+         */
+        @Override
+        public void writeTo(ByteBuffer buffer) {
+            Util.putLong(buffer, this.value);
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return (int) (this.value ^ (this.value >>> 32));
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PMm && ((PMm) obj).value == this.value;
+        }
+        /**
+         * コマンドの最大応答時間を算出します
+         * 
+         * <pre>
+         * 最大応答時間パラメタ(1バイト)は 上位2bitが E、次の3bitが B、下位3bitが Aを表し、
+         * 最大応答時間は T0 × ((B + 1) × n + (A + 1)) × 4^E で求められます。
+         * 
+         *  B3: Request Service (n = ノード数)
+         *  B4: Request Response, Search Service Code, Request System Code等 (n = 0)
+         *  B5: 相互認証 (n = ノード数)
+         *  B6: Read系 (n = ブロック数)
+         *  B7: Write系 (n = ブロック数)
+         *  B8: その他 (n = 0)
+         * </pre>
+         * 
+         * @param commandCode コマンドコードをセット
+         * @param n ブロック数又はノード数をセット
+         * @return double 最大応答時間(ミリ秒)が戻ります
+         */
+        public double getMaximumResponseTime(byte commandCode, int n) {
+            int param;
+            switch (commandCode) {
+            case COMMAND_REQUEST_SERVICE:
+                param = this.getMaximumResponseTimeParam(0);
+                break;
+            case COMMAND_REQUEST_RESPONSE:
+            case COMMAND_SEARCH_SERVICECODE:
+            case COMMAND_REQUEST_SYSTEMCODE:
+                param = this.getMaximumResponseTimeParam(1);
+                n = 0;
+                break;
+            case COMMAND_AUTHENTICATION1:
+            case COMMAND_AUTHENTICATION2:
+                param = this.getMaximumResponseTimeParam(2);
+                break;
+            case COMMAND_READ_WO_ENCRYPTION:
+            case COMMAND_READ:
+                param = this.getMaximumResponseTimeParam(3);
+                break;
+            case COMMAND_WRITE_WO_ENCRYPTION:
+            case COMMAND_WRITE:
+                param = this.getMaximumResponseTimeParam(4);
+                break;
+            default:
+                param = this.getMaximumResponseTimeParam(5);
+                n = 0;
+                break;
+            }
+            int a = param & 0x07;
+            int b = (param >> 3) & 0x07;
+            int e = (param >> 6) & 0x03;
+            return RESPONSE_TIME_UNIT * ((b + 1) * n + (a + 1)) * (1 << (2 * e));
         }
-
         /* (non-Javadoc)
          * @see java.lang.Object#toString()
          */
@@ -530,17 +751,17 @@ public final class FeliCaLib {
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("PMm(製造パラメータ)\n");
-            sb.append(" ICコード(2byte): " + Util.getHexString(this.icCode) + "\n");
-            sb.append("   ROM種別: " + Util.getHexString(this.icCode, 0, 1) + "\n");
-            sb.append("   IC 種別: " + Util.getHexString(this.icCode, 1, 1) + "\n");
+            sb.append(" ICコード(2byte): " + String.format("%04X", this.getICCode()) + "\n");
+            sb.append("   ROM種別: " + String.format("%02X", this.getRomType()) + "\n");
+            sb.append("   IC 種別: " + String.format("%02X", this.getICType()) + "\n");
             sb.append("\n");
             sb.append(" 最大応答時間パラメタ(6byte)\n");
-            sb.append("  B3(request service):" + Util.getBinString(this.maximumResponseTime, 0, 1) + "\n");
-            sb.append("  B4(request response):" + Util.getBinString(this.maximumResponseTime, 1, 1) + "\n");
-            sb.append("  B5(authenticate):" + Util.getBinString(this.maximumResponseTime, 2, 1) + "\n");
-            sb.append("  B6(read):" + Util.getBinString(this.maximumResponseTime, 3, 1) + "\n");
-            sb.append("  B7(write):" + Util.getBinString(this.maximumResponseTime, 4, 1) + "\n");
-            sb.append("  B8():" + Util.getBinString(this.maximumResponseTime, 5, 1) + "\n");
+            sb.append("  B3(request service):" + Util.getBinString((byte) this.getMaximumResponseTimeParam(0)) + "\n");
+            sb.append("  B4(request response):" + Util.getBinString((byte) this.getMaximumResponseTimeParam(1)) + "\n");
+            sb.append("  B5(authenticate):" + Util.getBinString((byte) this.getMaximumResponseTimeParam(2)) + "\n");
+            sb.append("  B6(read):" + Util.getBinString((byte) this.getMaximumResponseTimeParam(3)) + "\n");
+            sb.append("  B7(write):" + Util.getBinString((byte) this.getMaximumResponseTimeParam(4)) + "\n");
+            sb.append("  B8():" + Util.getBinString((byte) this.getMaximumResponseTimeParam(5)) + "\n");
             return sb.toString();
         }
     }
@@ -568,6 +789,27 @@ public final class FeliCaLib {
         public byte[] getBytes() {
             return this.systemCode;
         }
+        /**
+         * システムコードを数値として取得します
+         * @return int システムコード(例: 0x0003)が戻ります
+         */
+        public int getCode() {
+            return (this.systemCode[0] & 0xff) << 8 | (this.systemCode[1] & 0xff);
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+         */
+        @Override
+        public int encodedLength() {
+            return this.systemCode.length;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+         */
+        @Override
+        public void writeTo(ByteBuffer buffer) {
+            buffer.put(this.systemCode);
+        }
 
         /* (non-Javadoc)
          * @see java.lang.Object#toString()
@@ -586,7 +828,7 @@ public final class FeliCaLib {
      * @date 2011/01/20
      * @since Android API Level 9
      */
-     public static class ServiceCode {
+     public static class ServiceCode implements IFeliCaByteData {
          final byte[] serviceCode;
          final byte[] serviceCodeLE; // little endian
          /**
@@ -612,6 +854,27 @@ public final class FeliCaLib {
          public byte[] getBytes() {
              return this.serviceCode;
          }
+         /**
+          * サービスコードを数値として取得します
+          * @return int サービスコード(例: 0x090f)が戻ります
+          */
+         public int getCode() {
+             return (this.serviceCode[0] & 0xff) | (this.serviceCode[1] & 0xff) << 8;
+         }
+         /* (non-Javadoc)
+          * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+          */
+         @Override
+         public int encodedLength() {
+             return this.serviceCode.length;
+         }
+         /* (non-Javadoc)
+          * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+          */
+         @Override
+         public void writeTo(ByteBuffer buffer) {
+             buffer.put(this.serviceCode);
+         }
          /**
           * このサービスコードは、認証が必要か否かを検査します
           * @return boolean 認証が必要ならTrueが戻ります
@@ -673,6 +936,89 @@ public final class FeliCaLib {
          }
      }
     
+    /**
+     * FeliCa AreaCodeクラスを提供します
+     * 
+     * Search Service Codeが返す4バイトのノード(エリアコードと終了サービスコード)を保持します
+     * 
+     * @since Android API Level 10
+     */
+    public static class AreaCode implements IFeliCaByteData {
+        final int areaCode;
+        final int endServiceCode;
+        /**
+         * コンストラクタ
+         * @param bytes バイト列 (リトルエンディアンのエリアコード + 終了サービスコード)をセット
+         */
+        public AreaCode(byte[] bytes) {
+            this((bytes[0] & 0xff) | (bytes[1] & 0xff) << 8
+                    , (bytes[2] & 0xff) | (bytes[3] & 0xff) << 8);
+        }
+        /**
+         * コンストラクタ
+         * @param areaCode エリアコードをセット
+         * @param endServiceCode 終了サービスコードをセット
+         */
+        public AreaCode(int areaCode, int endServiceCode) {
+            this.areaCode = areaCode & 0xffff;
+            this.endServiceCode = endServiceCode & 0xffff;
+        }
+        /* (non-Javadoc)
+         * @see net.felica.IFeliCaByteData#getBytes()
+         */
+        @Override
+        public byte[] getBytes() {
+            return new byte[]{(byte) this.areaCode, (byte) (this.areaCode >> 8)
+                    , (byte) this.endServiceCode, (byte) (this.endServiceCode >> 8)};
+        }
+        /**
+         * エリアコードを数値として取得します
+         * @return int エリアコードが戻ります
+         */
+        public int getCode() {
+            return this.areaCode;
+        }
+        /**
+         * 終了サービスコードを数値として取得します
+         * @return int 終了サービスコードが戻ります
+         */
+        public int getEndServiceCode() {
+            return this.endServiceCode;
+        }
+        /**
+         * サービスコードがこのエリアに含まれるかを検査します
+         * @param serviceCode 検査するサービスコードをセット
+         * @return boolean 含まれる場合trueが戻ります
+         */
+        public boolean contains(ServiceCode serviceCode) {
+            int code = serviceCode.getCode();
+            return (this.areaCode & 0xffc0) <= code && code <= this.endServiceCode;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+         */
+        @Override
+        public int encodedLength() {
+            return 4;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+         */
+        @Override
+        public void writeTo(ByteBuffer buffer) {
+            //バッファのバイトオーダーに依らずリトルエンディアンで書き込みます
+            buffer.put((byte) this.areaCode).put((byte) (this.areaCode >> 8))
+                  .put((byte) this.endServiceCode).put((byte) (this.endServiceCode >> 8));
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format("エリアコード : %04x - %04x", this.areaCode, this.endServiceCode);
+        }
+    }
+    
     /**
      * 
      * Felica FileSystemにおけるService(サービス)クラスを提供します
@@ -699,26 +1045,35 @@ public final class FeliCaLib {
          */
         @Override
         public byte[] getBytes() {
-
+            byte[] bytes = new byte[this.encodedLength()];
+            this.writeTo(ByteBuffer.wrap(bytes));
+            return bytes;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+         */
+        @Override
+        public int encodedLength() {
             int length = 0;
             for (ServiceCode s : this.serviceCodes ) {
-                length += s.getBytes().length;
+                length += s.encodedLength();
             }
-            
             for (BlockListElement b : blockListElements) {
-                length += b.getBytes().length;
+                length += b.encodedLength();
             }
-            
-            ByteBuffer buff = ByteBuffer.allocate(length);
+            return length;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+         */
+        @Override
+        public void writeTo(ByteBuffer buffer) {
             for (ServiceCode s : this.serviceCodes ) {
-                buff.put(s.getBytes());
+                s.writeTo(buffer);
             }
-            
             for (BlockListElement b : blockListElements) {
-                buff.put(b.getBytes());
+                b.writeTo(buffer);
             }
-            
-            return buff.array();
         }
 
         /* (non-Javadoc)
@@ -767,6 +1122,20 @@ public final class FeliCaLib {
         public byte[] getBytes() {
             return this.data;
         }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+         */
+        @Override
+        public int encodedLength() {
+            return this.data.length;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+         */
+        @Override
+        public void writeTo(ByteBuffer buffer) {
+            buffer.put(this.data);
+        }
 
         /* (non-Javadoc)
          * @see java.lang.Object#toString()
@@ -802,10 +1171,12 @@ public final class FeliCaLib {
          * @param blockNumber 対象のブロック番号を1バイト又は2バイトでセット
          */
         public BlockListElement (byte accessMode, byte serviceCodeListOrder, byte... blockNumber ) {
+            // ブロック番号が1バイトなら2バイトエレメント、2バイトなら3バイトエレメント
+            // アクセスモードは bit6-4 に置きます
             if ( blockNumber.length > 1 ) {
-                this.lengthAndaccessMode =  (byte)(accessMode | LENGTH_2_BYTE & 0xFF);
+                this.lengthAndaccessMode =  (byte)((accessMode & 0x07) << 4 | LENGTH_3_BYTE & 0xFF);
             } else {
-                this.lengthAndaccessMode =  (byte)(accessMode | LENGTH_3_BYTE & 0xFF);
+                this.lengthAndaccessMode =  (byte)((accessMode & 0x07) << 4 | LENGTH_2_BYTE & 0xFF);
             }
             this.serviceCodeListOrder = (byte) (serviceCodeListOrder & 0x0F);
             this.blockNumber = blockNumber;
@@ -815,19 +1186,29 @@ public final class FeliCaLib {
          */
         @Override
         public byte[] getBytes() {
-            if ( (this.lengthAndaccessMode & LENGTH_2_BYTE) == 1 ) {
-                ByteBuffer buff = ByteBuffer.allocate(2);
-                buff.put( (byte)
-                        ((this.lengthAndaccessMode | this.serviceCodeListOrder) & 0xFF))
-                    .put(this.blockNumber[0]);
-                return buff.array();
+            byte[] bytes = new byte[this.encodedLength()];
+            this.writeTo(ByteBuffer.wrap(bytes));
+            return bytes;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#encodedLength()
+         */
+        @Override
+        public int encodedLength() {
+            return (this.lengthAndaccessMode & LENGTH_2_BYTE) != 0 ? 2 : 3;
+        }
+        /* (non-Javadoc)
+         * @see net.kazzz.felica.IFeliCaByteData#writeTo(java.nio.ByteBuffer)
+         */
+        @Override
+        public void writeTo(ByteBuffer buffer) {
+            buffer.put( (byte)
+                    ((this.lengthAndaccessMode | this.serviceCodeListOrder) & 0xFF));
+            if ( (this.lengthAndaccessMode & LENGTH_2_BYTE) != 0 ) {
+                buffer.put(this.blockNumber[0]);
             } else {
-                ByteBuffer buff = ByteBuffer.allocate(3);
-                buff.put( (byte)
-                        ((this.lengthAndaccessMode | this.serviceCodeListOrder) & 0xFF))
-                    .put(this.blockNumber[1])
+                buffer.put(this.blockNumber[1])
                     .put(this.blockNumber[0]); //little endian
-                return buff.array();
             }
         }
 
@@ -838,8 +1219,8 @@ public final class FeliCaLib {
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("ブロックリストエレメント\n");
-            sb.append("  データ長 : " + this.getBytes().length + " byte\n");
-            sb.append("  アクセスモード        : " + Util.getBinString((byte)(this.lengthAndaccessMode & 0x8F)) + "\n");
+            sb.append("  データ長 : " + this.encodedLength() + " byte\n");
+            sb.append("  アクセスモード        : " + Util.getBinString((byte)(this.lengthAndaccessMode & 0xF0)) + "\n");
             sb.append("  サービスコードリスト順: " + Util.getHexString(this.serviceCodeListOrder) + "\n");
             sb.append("  ブロックナンバー      : " + Util.getHexString(this.blockNumber) + "\n");
             return sb.toString();
@@ -887,7 +1268,7 @@ public final class FeliCaLib {
             
             boolean result = true;
             for ( int a : addrs ) {
-                byte b = (byte) ((a & 0xff) + 1);
+                byte b = (byte) (1 << (a & 0x07)); // ブロック毎に1ビット
                 if ( a < 8 ) {
                     result &= (this.data[0] & b ) == b;
                     continue;
@@ -944,6 +1325,129 @@ public final class FeliCaLib {
             throw new FeliCaException(e);
         }
     }
+    /**
+     * トランスポート上でコマンドを実行します
+     *
+     * @param transport トランスポート(FeliCaSession等)の参照をセットします
+     * @param commandPacket 実行するコマンドパケットをセットします
+     * @return CommandResponse コマンドの実行結果が戻ります 
+     * @throws FeliCaException コマンドの発行に失敗した場合にスローされます
+     */
+    public static final CommandResponse execute(IFeliCaTransport transport, CommandPacket commandPacket) throws FeliCaException {
+        try {
+            return new CommandResponse(transport.transceive(commandPacket));
+        } catch (NfcException e) {
+            throw new FeliCaException(e);
+        }
+    }
+    /**
+     * PMmから算出したタイムアウトを設定してコマンドを実行します
+     *
+     * @param transport トランスポート(FeliCaSession等)の参照をセットします
+     * @param commandPacket 実行するコマンドパケットをセットします
+     * @param pmm 対象カードのPMmをセットします (nullの場合は既定のタイムアウトで実行します)
+     * @return CommandResponse コマンドの実行結果が戻ります 
+     * @throws FeliCaException コマンドの発行に失敗した場合にスローされます
+     */
+    public static final CommandResponse execute(IFeliCaTransport transport, CommandPacket commandPacket
+            , PMm pmm) throws FeliCaException {
+        transport.setTimeout(getTimeout(commandPacket, pmm));
+        return execute(transport, commandPacket);
+    }
+    /**
+     * PMmから算出したタイムアウトでコマンドを実行し、必要に応じて再送します
+     *
+     * FeliCaTag/FeliCaLiteTagが共通で使用します
+     *
+     * @param transport トランスポート(FeliCaSession等)の参照をセットします
+     * @param commandPacket 実行するコマンドパケットをセットします
+     * @param pmm 対象カードのPMmをセットします (nullの場合は既定のタイムアウトで実行します)
+     * @param retryHandler 再送ハンドラをセットします (nullの場合は再送しません)
+     * @param systemCode 再ポーリングに使用するシステムコードをセットします
+     * @return CommandResponse コマンドの実行結果が戻ります
+     * @throws FeliCaException コマンドの発行に失敗した場合にスローされます
+     */
+    public static final CommandResponse execute(IFeliCaTransport transport, CommandPacket commandPacket
+            , PMm pmm, FeliCaRetryHandler retryHandler, int systemCode) throws FeliCaException {
+        return new CommandResponse(executeRaw(transport, commandPacket, pmm, retryHandler, systemCode));
+    }
+    /**
+     * PMmから算出したタイムアウトでコマンドを実行し、応答フレームを解析せずに取得します
+     *
+     * 再送ハンドラが指定された場合は、冪等なコマンドの失敗を再送で復旧します
+     *
+     * @param transport トランスポート(FeliCaSession等)の参照をセットします
+     * @param commandPacket 実行するコマンドパケットをセットします
+     * @param pmm 対象カードのPMmをセットします (nullの場合は既定のタイムアウトで実行します)
+     * @param retryHandler 再送ハンドラをセットします (nullの場合は再送しません)
+     * @param systemCode 再ポーリングに使用するシステムコードをセットします
+     * @return byte[] 応答フレームが戻ります
+     * @throws FeliCaException コマンドの発行に失敗した場合にスローされます
+     */
+    public static final byte[] executeRaw(IFeliCaTransport transport, CommandPacket commandPacket
+            , PMm pmm, FeliCaRetryHandler retryHandler, int systemCode) throws FeliCaException {
+        if ( retryHandler != null ) {
+            return retryHandler.executeRaw(transport, commandPacket, pmm, systemCode);
+        }
+        transport.setTimeout(getTimeout(commandPacket, pmm));
+        try {
+            return transport.transceive(commandPacket);
+        } catch (NfcException e) {
+            throw new FeliCaException(e);
+        }
+    }
+    /**
+     * コマンドの応答タイムアウトを算出します
+     * 
+     * Read/Writeはブロック数、Request Serviceはノード数を コマンドデータから取得してPMmの最大応答時間に
+     * 余裕を加えます。Pollingは PMmに依らず、タイムスロット数から算出します。
+     *
+     * @param commandPacket 実行するコマンドパケットをセットします
+     * @param pmm 対象カードのPMmをセットします
+     * @return int タイムアウト(ミリ秒)が戻ります (算出できない場合は0)
+     */
+    public static final int getTimeout(CommandPacket commandPacket, PMm pmm) {
+        byte code = commandPacket.commandCode;
+        byte[] data = commandPacket.data;
+        if ( code == COMMAND_POLLING ) {
+            int slots = data.length > 3 ? data[3] & 0x0f : 0; // 追加のタイムスロット数
+            return POLLING_TIMEOUT + (int) Math.ceil(slots * POLLING_SLOT_TIME);
+        }
+        if ( pmm == null ) return 0;
+        int n = 0;
+        switch (code) {
+        case COMMAND_REQUEST_SERVICE:
+        case COMMAND_AUTHENTICATION1:
+            if ( data.length > 0 ) n = data[0] & 0xff; // ノード数
+            break;
+        case COMMAND_READ_WO_ENCRYPTION:
+        case COMMAND_WRITE_WO_ENCRYPTION:
+        case COMMAND_READ:
+        case COMMAND_WRITE:
+            if ( data.length > 0 ) {
+                int p = 1 + (data[0] & 0xff) * 2; // サービスコードリストの後ろがブロック数
+                if ( p < data.length ) n = data[p] & 0xff;
+            }
+            break;
+        }
+        double t = pmm.getMaximumResponseTime(code, n);
+        return (int) Math.ceil(t * TIMEOUT_MARGIN_RATIO) + TIMEOUT_MARGIN;
+    }
+    /**
+     * トランスポート上でRawデータを使ってコマンドを実行します
+     * 
+     * @param transport トランスポート(FeliCaSession等)の参照をセットします
+     * @param data コマンドにセットするデータをセットします
+     * @return byte[] コマンドの実行結果バイト列で戻ります 
+     * @throws FeliCaException コマンドの発行に失敗した場合にスローされます
+     */
+    public static final byte[] executeRaw(IFeliCaTransport transport, byte[] data) throws FeliCaException {
+        try {
+            return transport.transceive(data);
+        } catch (NfcException e) {
+            throw new FeliCaException(e);
+        }
+    }
     /**
      * INfcTag#transceiveを実行します
      * 
@@ -0,0 +1,238 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.lib;
+
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_POLLING;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_WRITE_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.SERVICE_FELICA_LITE_READWRITE;
+import static net.kazzz.felica.lib.FeliCaLib.SYSTEMCODE_ANY;
+
+import net.kazzz.felica.FeliCaCommandException;
+import net.kazzz.felica.FeliCaCommandException.FailureType;
+import net.kazzz.felica.FeliCaException;
+import net.kazzz.felica.lib.FeliCaLib.CommandPacket;
+import net.kazzz.felica.lib.FeliCaLib.CommandResponse;
+import net.kazzz.felica.lib.FeliCaLib.PMm;
+import net.kazzz.nfc.NfcException;
+
+/**
+ * 失われた、又は壊れた応答フレームに対する再送と復旧を行うクラスを提供します
+ *
+ * <pre>
+ * 応答を検査して失敗を FailureTypeに分類し、冪等なコマンドだけを時間予算内で再送します。
+ * IDmの不一致やタグの喪失で再送する場合は、先に同じシステムコードで再ポーリングして
+ * 同じカードが応答することを確認します。
+ *
+ * 冪等か否かはFeliCaCommandRegistryの定義に従います。冪等でないコマンド(サイクリック/パースサービスへの
+ * 書き込み、認証等)は、カードが処理したかどうか判らないため再送せずに例外をスローします。
+ * FeliCa LiteのREGブロック(0x0E)は書き込む度に値が減算されるため、ランダムサービスであっても冪等として扱いません。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaRetryHandler {
+    /** 既定の時間予算 (ミリ秒) */
+    public static final long DEFAULT_TIME_BUDGET = 300;
+    /** 既定の最大試行回数 */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    //FeliCa LiteのREGブロック (書き込みで減算されるため冪等ではありません)
+    private static final int FELICA_LITE_BLOCK_REG = 0x0e;
+
+    protected final long timeBudget;
+    protected final int maxAttempts;
+    /**
+     * コンストラクタ
+     */
+    public FeliCaRetryHandler() {
+        this(DEFAULT_TIME_BUDGET, DEFAULT_MAX_ATTEMPTS);
+    }
+    /**
+     * コンストラクタ
+     *
+     * @param timeBudget 再送を含めた全体の時間予算(ミリ秒)をセット
+     * @param maxAttempts 最大試行回数(初回を含みます)をセット
+     */
+    public FeliCaRetryHandler(long timeBudget, int maxAttempts) {
+        this.timeBudget = timeBudget;
+        this.maxAttempts = maxAttempts;
+    }
+    /**
+     * コマンドを実行し、必要に応じて再送します
+     *
+     * @param transport トランスポートをセット
+     * @param commandPacket 実行するコマンドパケットをセット
+     * @param pmm 対象カードのPMmをセット (タイムアウトの算出に使用します。nullも可)
+     * @param systemCode 再ポーリングに使用するシステムコードをセット
+     * @return CommandResponse 検査済みのコマンド実行結果が戻ります
+     * @throws FeliCaException 再送できない失敗、又は時間予算や試行回数を使い切った場合にスローされます
+     */
+    public CommandResponse execute(IFeliCaTransport transport, CommandPacket commandPacket
+            , PMm pmm, int systemCode) throws FeliCaException {
+        return new CommandResponse(this.executeRaw(transport, commandPacket, pmm, systemCode));
+    }
+    /**
+     * コマンドを実行し、必要に応じて再送します (応答フレームを解析せずに返します)
+     *
+     * @param transport トランスポートをセット
+     * @param commandPacket 実行するコマンドパケットをセット
+     * @param pmm 対象カードのPMmをセット (タイムアウトの算出に使用します。nullも可)
+     * @param systemCode 再ポーリングに使用するシステムコードをセット
+     * @return byte[] 検査済みの応答フレームが戻ります
+     * @throws FeliCaException 再送できない失敗、又は時間予算や試行回数を使い切った場合にスローされます
+     */
+    public byte[] executeRaw(IFeliCaTransport transport, CommandPacket commandPacket
+            , PMm pmm, int systemCode) throws FeliCaException {
+        final long deadline = System.currentTimeMillis() + this.timeBudget;
+        final boolean idempotent = isIdempotent(commandPacket);
+        final int timeout = FeliCaLib.getTimeout(commandPacket, pmm);
+        boolean needRepoll = false;
+        for ( int attempt = 1; ; attempt++ ) {
+            FeliCaCommandException failure;
+            try {
+                if ( needRepoll ) {
+                    this.repoll(transport, commandPacket, systemCode);
+                }
+                transport.setTimeout(timeout);
+                byte[] result = transport.transceive(commandPacket);
+                FailureType type = classify(commandPacket, result);
+                if ( type == null ) {
+                    return result;
+                }
+                failure = new FeliCaCommandException(type
+                        , "command " + Util.getHexString(commandPacket.commandCode) + " failed");
+            } catch (NfcException e) {
+                failure = new FeliCaCommandException(FailureType.TIMEOUT, e);
+            } catch (FeliCaCommandException e) {
+                failure = e;
+            }
+            if ( !idempotent || attempt >= this.maxAttempts
+                    || System.currentTimeMillis() >= deadline ) {
+                throw failure;
+            }
+            FailureType type = failure.getFailureType();
+            needRepoll = commandPacket.commandCode != COMMAND_POLLING
+                && ( type == FailureType.TAG_LOST || type == FailureType.IDM_MISMATCH );
+        }
+    }
+    /**
+     * 再ポーリングして同じカードが応答することを確認します
+     *
+     * IDmを持たないコマンドパケットの場合は、応答したカードのIDmを照合しません
+     */
+    protected void repoll(IFeliCaTransport transport, CommandPacket commandPacket
+            , int systemCode) throws FeliCaException {
+        CommandPacket polling =
+            new CommandPacket(COMMAND_POLLING
+                    , new byte[] {
+                      (byte) (systemCode >> 8)  // システムコード
+                    , (byte) (systemCode & 0xff)
+                    , (byte) 0x00              //　リクエストコード
+                    , (byte) 0x00});           // タイムスロット
+        transport.setTimeout(FeliCaLib.POLLING_TIMEOUT);
+        byte[] result;
+        try {
+            result = transport.transceive(polling);
+        } catch (NfcException e) {
+            throw new FeliCaCommandException(FailureType.TIMEOUT, e);
+        }
+        FailureType type = classify(polling, result);
+        if ( type != null )
+            throw new FeliCaCommandException(type, "re-polling failed");
+        if ( commandPacket.idm != null && commandPacket.idm.longValue() != Util.toLong(result, 2) )
+            throw new FeliCaCommandException(FailureType.IDM_MISMATCH, "another card is in the field");
+    }
+    /**
+     * 応答フレームを検査して失敗の種別を判定します
+     *
+     * @param commandPacket 送信したコマンドパケットをセット
+     * @param result 受信した応答フレームをセット
+     * @return FailureType 失敗の種別が戻ります (正常な場合はnullが戻ります)
+     */
+    public static FailureType classify(CommandPacket commandPacket, byte[] result) {
+        if ( result == null )
+            return FailureType.TAG_LOST;
+        if ( result.length < 10 || (result[0] & 0xff) != result.length )
+            return FailureType.MALFORMED_LENGTH;
+        FeliCaCommandRegistry.CommandInfo info = FeliCaCommandRegistry.get(commandPacket.commandCode);
+        byte expected = info != null ? info.getResponseCode() : (byte) (commandPacket.commandCode + 1);
+        if ( result[1] != expected )
+            return FailureType.WRONG_RESPONSE_CODE;
+        if ( commandPacket.commandCode != COMMAND_POLLING && commandPacket.idm != null
+                && commandPacket.idm.longValue() != Util.toLong(result, 2) )
+            return FailureType.IDM_MISMATCH;
+        return null;
+    }
+    /**
+     * コマンドが冪等(再送しても結果が変わらない)か否かを検査します
+     *
+     * Write Without Encryptionはランダムサービスへの書き込みのみを冪等として扱います
+     * (FeliCa LiteのREGブロックへの書き込みを除きます)
+     *
+     * @param commandPacket 対象のコマンドパケットをセット
+     * @return boolean 冪等な場合trueが戻ります
+     */
+    public static boolean isIdempotent(CommandPacket commandPacket) {
+        if ( commandPacket.commandCode == COMMAND_WRITE_WO_ENCRYPTION )
+            return isRandomServiceOnly(commandPacket.data) && !isLiteRegWrite(commandPacket.data);
+        FeliCaCommandRegistry.CommandInfo info = FeliCaCommandRegistry.get(commandPacket.commandCode);
+        return info != null && info.isIdempotent();
+    }
+    /**
+     * サービスコードリストがランダムサービスだけで構成されているかを検査します
+     */
+    static boolean isRandomServiceOnly(byte[] data) {
+        if ( data.length < 1 ) return false;
+        int count = data[0] & 0xff;
+        if ( data.length < 1 + count * 2 ) return false;
+        for ( int i = 0; i < count; i++ ) {
+            int attr = data[1 + i * 2] & 0x3f; // 下位6bitがアクセス属性 (little endian)
+            if ( attr < FeliCaLib.RANDOM_RW_AUTH || attr > FeliCaLib.RANDOM_RO_WOAUTH ) return false;
+        }
+        return true;
+    }
+    /**
+     * ブロックリストにFeliCa LiteのREGブロックが含まれているかを検査します
+     *
+     * ブロックリストエレメントは先頭バイトのbit7が1の場合は2バイト(ブロック番号1バイト)、
+     * 0の場合は3バイト(ブロック番号2バイト little endian)で、下位4bitがサービスコードリスト順番です
+     */
+    static boolean isLiteRegWrite(byte[] data) {
+        if ( data.length < 1 ) return true;
+        int serviceCount = data[0] & 0xff;
+        int p = 1 + serviceCount * 2;
+        if ( data.length <= p ) return true; //解析できない場合は冪等として扱いません
+        int blockCount = data[p++] & 0xff;
+        for ( int i = 0; i < blockCount; i++ ) {
+            if ( p >= data.length ) return true;
+            int header = data[p] & 0xff;
+            int order = header & 0x0f;
+            int block;
+            if ( (header & 0x80) != 0 ) {
+                if ( p + 2 > data.length ) return true;
+                block = data[p + 1] & 0xff;
+                p += 2;
+            } else {
+                if ( p + 3 > data.length ) return true;
+                block = (data[p + 1] & 0xff) | (data[p + 2] & 0xff) << 8;
+                p += 3;
+            }
+            if ( order >= serviceCount ) return true;
+            //SERVICE_FELICA_LITE_READWRITE(0x0900)は送信バイト順で表記されています (0x0009 little endian)
+            int serviceCode = (data[1 + order * 2] & 0xff) << 8 | (data[2 + order * 2] & 0xff);
+            if ( serviceCode == SERVICE_FELICA_LITE_READWRITE && block == FELICA_LITE_BLOCK_REG ) return true;
+        }
+        return false;
+    }
+}
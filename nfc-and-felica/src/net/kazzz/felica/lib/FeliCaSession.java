@@ -0,0 +1,268 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.lib;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.kazzz.nfc.NfcException;
+import android.nfc.Tag;
+import android.nfc.TagLostException;
+import android.nfc.tech.NfcF;
+
+/**
+ * NfcFへの接続を複数のコマンドにわたって保持するセッションクラスを提供します
+ *
+ * <pre>
+ * FeliCaLib#transceive(Tag, byte[])はコマンド毎に connect/closeを繰り返しますが、
+ * 本クラスは一度確立した接続を使い回し、一定時間使用されなかった場合かclose()が
+ * 呼ばれた場合にのみ接続を閉じます。TagLostExceptionを検出した場合は次のコマンドに備えて
+ * 再接続だけを行い、失われたフレームは再送しません。再送するか否かは上位(FeliCaRetryHandler)が
+ * コマンドの冪等性から判断します。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaSession extends AbstractFeliCaTransport {
+    /** 既定のアイドルタイムアウト (ミリ秒) */
+    public static final long DEFAULT_IDLE_TIMEOUT = 3000;
+
+    //アイドル監視用のタイマ (全セッションで共有します)
+    private static final Timer idleTimer = new Timer("FeliCaSession-idle", true);
+
+    //NfcF#setTimeout(int)/getTimeout()はAPI Level 14以降にしか無いためリフレクションで呼び出します
+    private static final Method setTimeoutMethod = findTimeoutMethod("setTimeout", int.class);
+    private static final Method getTimeoutMethod = findTimeoutMethod("getTimeout");
+
+    protected final Tag nfcTag;
+    protected NfcF nfcF;
+    protected long idleTimeout;
+    protected int timeout;
+    protected int appliedTimeout;
+    protected int defaultTimeout;
+    protected long idleDeadline;
+    protected TimerTask idleTask;
+    protected boolean closed;
+    /**
+     * コンストラクタ
+     *
+     * @param nfcTag NFCTagへの参照をセット
+     */
+    public FeliCaSession(Tag nfcTag) {
+        this(nfcTag, DEFAULT_IDLE_TIMEOUT);
+    }
+    /**
+     * コンストラクタ
+     *
+     * @param nfcTag NFCTagへの参照をセット
+     * @param idleTimeout 接続を自動で閉じるまでのアイドル時間(ミリ秒)をセット (0以下の場合は自動で閉じません)
+     */
+    public FeliCaSession(Tag nfcTag, long idleTimeout) {
+        this.nfcTag = nfcTag;
+        this.idleTimeout = idleTimeout;
+    }
+    /**
+     * Tagを取得します
+     * @return Tag セッションの対象となるTagが戻ります
+     */
+    public Tag getTag() {
+        return this.nfcTag;
+    }
+    /**
+     * アイドルタイムアウトを設定します
+     * @param idleTimeout アイドル時間(ミリ秒)をセット (0以下の場合は自動で閉じません)
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+    /**
+     * 応答タイムアウトを設定します
+     *
+     * NfcF#setTimeout(int)を持たないプラットフォーム(API Level 14未満)では無視されます
+     * @param timeout タイムアウト(ミリ秒)をセット (0以下の場合はプラットフォームの既定値)
+     */
+    @Override
+    public synchronized void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+    /**
+     * 接続中か否かを検査します
+     * @return boolean 接続中の場合trueが戻ります
+     */
+    public synchronized boolean isConnected() {
+        return this.nfcF != null && this.nfcF.isConnected();
+    }
+    /**
+     * 保持している接続上でコマンドを送受信します
+     *
+     * @param data 送信するバイト列をセットします
+     * @return byte[] コマンドの実行結果バイト列が戻ります (タグを見失った場合はnullが戻ります)
+     * @throws NfcException コマンドの発行に失敗した場合にスローされます
+     */
+    @Override
+    public synchronized byte[] transceive(byte[] data) throws NfcException {
+        if ( this.closed )
+            throw new NfcException("session is already closed");
+        try {
+            try {
+                return this.connect().transceive(data);
+            } catch (TagLostException e) {
+                //フレームが処理されたか判らないため再送せず、次のコマンドのために再接続だけを行います
+                this.disconnect();
+                try {
+                    this.connect();
+                } catch (IOException e2) {
+                    this.disconnect();
+                }
+                return null; //Tag Lost
+            }
+        } catch (IOException e) {
+            this.disconnect();
+            throw new NfcException(e);
+        } finally {
+            this.scheduleIdle();
+        }
+    }
+    /**
+     * セッションを閉じます
+     *
+     * 閉じたセッションは再利用できません
+     */
+    @Override
+    public synchronized void close() {
+        this.cancelIdle();
+        this.disconnect();
+        this.closed = true;
+    }
+    /**
+     * NfcFへ接続します (接続済みの場合は何もしません)
+     * @return NfcF 接続済みのNfcFが戻ります
+     * @throws IOException
+     */
+    protected NfcF connect() throws IOException {
+        if ( this.nfcF == null ) {
+            //NfcFはFeliCa
+            NfcF f = NfcF.get(this.nfcTag);
+            if ( f == null ) throw new IOException("tag is not FeliCa(NFC-F) ");
+            this.nfcF = f;
+        }
+        if ( !this.nfcF.isConnected() ) {
+            this.nfcF.connect();
+            //接続直後のタイムアウトをプラットフォームの既定値として保持します
+            this.appliedTimeout = this.readTimeout();
+            if ( this.defaultTimeout <= 0 ) this.defaultTimeout = this.appliedTimeout;
+        }
+        //0以下が指定された場合はポーリング等で短縮したタイムアウトを既定値へ戻します
+        int t = this.timeout > 0 ? this.timeout : this.defaultTimeout;
+        if ( t > 0 && t != this.appliedTimeout ) {
+            this.applyTimeout(t);
+        }
+        return this.nfcF;
+    }
+    /**
+     * NfcFにタイムアウトを設定します
+     * @param timeout タイムアウト(ミリ秒)をセット
+     */
+    protected void applyTimeout(int timeout) {
+        if ( setTimeoutMethod == null ) return;
+        try {
+            setTimeoutMethod.invoke(this.nfcF, timeout);
+            this.appliedTimeout = timeout;
+        } catch (Exception e) {
+            //設定できない場合は既定のタイムアウトのまま送受信します
+        }
+    }
+    /**
+     * NfcFに設定されているタイムアウトを取得します
+     * @return int タイムアウト(ミリ秒)が戻ります (取得できない場合は0が戻ります)
+     */
+    protected int readTimeout() {
+        if ( getTimeoutMethod == null ) return 0;
+        try {
+            return ((Integer) getTimeoutMethod.invoke(this.nfcF)).intValue();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+    /**
+     * NfcFとの接続を切断します
+     */
+    protected void disconnect() {
+        if ( this.nfcF == null ) return;
+        try {
+            this.nfcF.close();
+        } catch (IOException e) {
+            //切断時の例外は無視します
+        }
+    }
+    /**
+     * NfcF#setTimeout(int)/getTimeout()を検索します
+     * @param name メソッド名をセット
+     * @param parameterTypes 引数の型をセット
+     * @return Method 見つからない場合はnullが戻ります
+     */
+    private static Method findTimeoutMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return NfcF.class.getMethod(name, parameterTypes);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    /**
+     * アイドル監視の期限を延長します
+     *
+     * コマンド毎にタスクを生成しないよう、期限だけを更新して監視中のタスクを使い回します
+     */
+    private void scheduleIdle() {
+        if ( this.idleTimeout <= 0 ) return;
+        this.idleDeadline = System.currentTimeMillis() + this.idleTimeout;
+        if ( this.idleTask == null ) {
+            this.idleTask = new IdleTask();
+            idleTimer.schedule(this.idleTask, this.idleTimeout);
+        }
+    }
+    /**
+     * アイドル監視タスク
+     *
+     * 期限前に起動した場合は残り時間で再登録し、期限を過ぎていれば接続を閉じます
+     */
+    private class IdleTask extends TimerTask {
+        @Override
+        public void run() {
+            synchronized (FeliCaSession.this) {
+                if ( FeliCaSession.this.idleTask != this ) return;
+                long remain = FeliCaSession.this.idleDeadline - System.currentTimeMillis();
+                if ( remain > 0 ) {
+                    //TimerTaskは再登録できないため、期限が延長された場合のみ新しいタスクを登録します
+                    FeliCaSession.this.idleTask = new IdleTask();
+                    idleTimer.schedule(FeliCaSession.this.idleTask, remain);
+                } else {
+                    FeliCaSession.this.idleTask = null;
+                    FeliCaSession.this.disconnect();
+                }
+            }
+        }
+    }
+    /**
+     * アイドル監視を解除します
+     */
+    private void cancelIdle() {
+        if ( this.idleTask != null ) {
+            this.idleTask.cancel();
+            this.idleTask = null;
+        }
+    }
+}
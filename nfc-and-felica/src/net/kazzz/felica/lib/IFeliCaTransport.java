@@ -0,0 +1,55 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.lib;
+
+import net.kazzz.felica.IFeliCaByteData;
+import net.kazzz.nfc.NfcException;
+
+/**
+ * FeliCaのフレームを送受信するトランスポートを抽象化したインタフェース
+ * 
+ * <pre>
+ * 実機ではFeliCaSession(NfcF)が、JVM上ではSimulatedFeliCaCard等がこれを実装します
+ * </pre>
+ * 
+ * @since Android API Level 10
+ *
+ */
+
+public interface IFeliCaTransport {
+    /**
+     * フレームを送信し、応答フレームを受信します
+     * 
+     * @param data 送信するフレーム(データ長バイトを含みます)をセット
+     * @return byte[] 応答フレームが戻ります (タグを見失った場合はnullが戻ります)
+     * @throws NfcException 送受信に失敗した場合にスローされます
+     */
+    byte[] transceive(byte[] data) throws NfcException;
+    /**
+     * コマンドをトランスポートが保持するバッファへ直接エンコードして送信し、応答フレームを受信します
+     * 
+     * @param command 送信するコマンド(データ長バイトを含むフレーム全体)をセット
+     * @return byte[] 応答フレームが戻ります (タグを見失った場合はnullが戻ります)
+     * @throws NfcException 送受信に失敗した場合にスローされます
+     */
+    byte[] transceive(IFeliCaByteData command) throws NfcException;
+    /**
+     * 以降に送受信するコマンドの応答タイムアウトを設定します
+     * 
+     * @param timeout タイムアウト(ミリ秒)をセット (0以下の場合はプラットフォームの既定値)
+     */
+    void setTimeout(int timeout);
+    /**
+     * トランスポートを閉じます
+     */
+    void close();
+}
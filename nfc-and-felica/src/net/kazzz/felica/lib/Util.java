@@ -71,6 +71,32 @@ public final class Util {
             
         return ByteBuffer.wrap(b).getInt();
     }
+    /**
+     * バイト配列中の8バイトをlongにします (ビッグエンディアン)
+     * 
+     * @param bytes バイト配列をセット
+     * @param offset 開始位置をセット
+     * @return long 64bit値が戻ります
+     */
+    public static long toLong(byte[] bytes, int offset) {
+        long v = 0;
+        for ( int i = offset; i < offset + 8; i++ ) {
+            v = (v << 8) | (bytes[i] & 0xFF);
+        }
+        return v;
+    }
+    /**
+     * longをバッファにビッグエンディアンで書き込みます
+     * 
+     * バッファのバイトオーダー設定に依存しません
+     * @param buffer 書き込み先のバッファをセット
+     * @param value 64bit値をセット
+     */
+    public static void putLong(ByteBuffer buffer, long value) {
+        for ( int shift = 56; shift >= 0; shift -= 8 ) {
+            buffer.put((byte) (value >>> shift));
+        }
+    }
     /**
      * byte配列を16進数文字列で戻します
      * 
@@ -0,0 +1,468 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.sim;
+
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_POLLING;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_READ_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_REQUEST_RESPONSE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_REQUEST_SERVICE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_REQUEST_SYSTEMCODE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_SEARCH_SERVICECODE;
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_WRITE_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_POLLING;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_READ_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_REQUEST_RESPONSE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_REQUEST_SERVICE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_REQUEST_SYSTEMCODE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_SEARCH_SERVICECODE;
+import static net.kazzz.felica.lib.FeliCaLib.RESPONSE_WRITE_WO_ENCRYPTION;
+import static net.kazzz.felica.lib.FeliCaLib.STATUSFLAG2_ERROR_BLOCK_COUNT;
+import static net.kazzz.felica.lib.FeliCaLib.STATUSFLAG2_ERROR_BLOCK_NUMBER;
+import static net.kazzz.felica.lib.FeliCaLib.STATUSFLAG2_ERROR_SERVICE_CODE;
+import static net.kazzz.felica.lib.FeliCaLib.STATUSFLAG2_ERROR_SERVICE_COUNT;
+import static net.kazzz.felica.lib.FeliCaLib.STATUSFLAG2_ERROR_SERVICE_ORDER;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.kazzz.felica.lib.AbstractFeliCaTransport;
+import net.kazzz.nfc.NfcException;
+
+/**
+ * メモリイメージ上で動作する FeliCaカードのシミュレータを提供します
+ *
+ * <pre>
+ * Android端末を使わずにJVM上でFeliCaTag/FeliCaLiteTagやコマンドの処理を動かすためのトランスポートです。
+ * Polling、Request System Code、Search Service Code、
+ * Read Without Encryption、Write Without Encryptionに応答します。
+ *
+ * サービスコードは数値(例: 0x090f)で指定し、フレーム上はリトルエンディアンで扱います。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class SimulatedFeliCaCard extends AbstractFeliCaTransport {
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * シミュレートするシステム(システムコード毎のファイルシステム)クラスを提供します
+     */
+    public static class SystemImage {
+        final int systemCode;
+        final byte[] idm;
+        final List<int[]> nodes = new ArrayList<int[]>(); // {エリアコード, 終端サービスコード} 又は {サービスコード}
+        final Map<Integer, byte[][]> blocks = new LinkedHashMap<Integer, byte[][]>();
+
+        SystemImage(int systemCode, byte[] idm) {
+            this.systemCode = systemCode;
+            this.idm = idm;
+        }
+        /**
+         * エリアを追加します
+         * @param areaCode エリアコードをセット
+         * @param endServiceCode エリアの終端サービスコードをセット
+         * @return SystemImage このシステムが戻ります
+         */
+        public SystemImage addArea(int areaCode, int endServiceCode) {
+            this.nodes.add(new int[]{areaCode, endServiceCode});
+            return this;
+        }
+        /**
+         * 0クリアされたブロックを持つサービスを追加します
+         * @param serviceCode サービスコードをセット
+         * @param blockCount ブロック数をセット
+         * @return SystemImage このシステムが戻ります
+         */
+        public SystemImage addService(int serviceCode, int blockCount) {
+            return this.addService(serviceCode, new byte[blockCount * BLOCK_SIZE]);
+        }
+        /**
+         * データを持つサービスを追加します
+         * @param serviceCode サービスコードをセット
+         * @param data ブロックデータをセット (16バイト単位に切り上げられます)
+         * @return SystemImage このシステムが戻ります
+         */
+        public SystemImage addService(int serviceCode, byte[] data) {
+            int count = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            byte[][] b = new byte[count][];
+            for ( int i = 0; i < count; i++ ) {
+                b[i] = Arrays.copyOf(
+                        Arrays.copyOfRange(data, i * BLOCK_SIZE, Math.min(data.length, (i + 1) * BLOCK_SIZE))
+                        , BLOCK_SIZE);
+            }
+            this.nodes.add(new int[]{serviceCode});
+            this.blocks.put(serviceCode, b);
+            return this;
+        }
+        /**
+         * システムコードを取得します
+         * @return int システムコードが戻ります
+         */
+        public int getSystemCode() {
+            return this.systemCode;
+        }
+        /**
+         * このシステムのIDmを取得します
+         * @return byte[] IDmが戻ります
+         */
+        public byte[] getIDm() {
+            return this.idm.clone();
+        }
+        /**
+         * ブロックデータを取得します
+         * @param serviceCode サービスコードをセット
+         * @param block ブロック番号をセット
+         * @return byte[] ブロックデータが戻ります (存在しない場合はnullが戻ります)
+         */
+        public byte[] getBlock(int serviceCode, int block) {
+            byte[][] b = this.blocks.get(serviceCode);
+            return ( b != null && block < b.length ) ? b[block].clone() : null;
+        }
+    }
+
+    protected final byte[] idm;
+    protected final byte[] pmm;
+    protected final List<SystemImage> systems = new ArrayList<SystemImage>();
+    protected int timeout;
+    protected boolean closed;
+    protected int maxReadBlocks = 15;
+    protected int maxWriteBlocks = 13;
+    /**
+     * コンストラクタ
+     *
+     * @param idm システム0のIDm(8バイト)をセット
+     * @param pmm PMm(8バイト)をセット
+     */
+    public SimulatedFeliCaCard(byte[] idm, byte[] pmm) {
+        this.idm = idm.clone();
+        this.pmm = pmm.clone();
+    }
+    /**
+     * システムを追加します
+     *
+     * 追加した順にシステム番号が振られ、IDmの上位4ビットがシステム番号になります
+     * @param systemCode システムコードをセット
+     * @return SystemImage 追加したシステムが戻ります
+     */
+    public synchronized SystemImage addSystem(int systemCode) {
+        byte[] sysIdm = this.idm.clone();
+        sysIdm[0] = (byte) ((sysIdm[0] & 0x0f) | (this.systems.size() << 4));
+        SystemImage s = new SystemImage(systemCode, sysIdm);
+        this.systems.add(s);
+        return s;
+    }
+    /**
+     * システムを取得します
+     * @param systemCode システムコードをセット
+     * @return SystemImage 該当するシステムが戻ります (存在しない場合はnullが戻ります)
+     */
+    public synchronized SystemImage getSystem(int systemCode) {
+        for ( SystemImage s : this.systems ) {
+            if ( s.systemCode == systemCode ) return s;
+        }
+        return null;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.lib.IFeliCaTransport#transceive(byte[])
+     */
+    @Override
+    public synchronized byte[] transceive(byte[] data) throws NfcException {
+        if ( this.closed )
+            throw new NfcException("transport is already closed");
+        if ( data == null || data.length < 2 || (data[0] & 0xff) != data.length )
+            throw new NfcException("illegal frame length");
+        byte[] response;
+        switch (data[1]) {
+        case COMMAND_POLLING:
+            response = this.polling(data);
+            break;
+        case COMMAND_REQUEST_RESPONSE:
+            response = this.requestResponse(this.target(data));
+            break;
+        case COMMAND_REQUEST_SERVICE:
+            response = this.requestService(this.target(data), data);
+            break;
+        case COMMAND_REQUEST_SYSTEMCODE:
+            response = this.requestSystemCode(this.target(data));
+            break;
+        case COMMAND_SEARCH_SERVICECODE:
+            response = this.searchServiceCode(this.target(data), data);
+            break;
+        case COMMAND_READ_WO_ENCRYPTION:
+            response = this.read(this.target(data), data);
+            break;
+        case COMMAND_WRITE_WO_ENCRYPTION:
+            response = this.write(this.target(data), data);
+            break;
+        default:
+            response = null;
+            break;
+        }
+        if ( response == null ) // 実カードは応答しないのでタイムアウトとして扱います
+            throw new NfcException("no response (timeout)");
+        return response;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.lib.IFeliCaTransport#setTimeout(int)
+     */
+    @Override
+    public synchronized void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+    /**
+     * 1コマンドで読み込める最大ブロック数を設定します
+     *
+     * 超えた場合はブロック数の不正(0xA2)を返します
+     * @param maxReadBlocks 最大ブロック数をセット
+     */
+    public synchronized void setMaxReadBlocks(int maxReadBlocks) {
+        this.maxReadBlocks = maxReadBlocks;
+    }
+    /**
+     * 1コマンドで書き込める最大ブロック数を設定します
+     *
+     * 超えた場合はブロック数の不正(0xA2)を返します
+     * @param maxWriteBlocks 最大ブロック数をセット
+     */
+    public synchronized void setMaxWriteBlocks(int maxWriteBlocks) {
+        this.maxWriteBlocks = maxWriteBlocks;
+    }
+    /**
+     * 最後に設定された応答タイムアウトを取得します
+     * @return int タイムアウト(ミリ秒)が戻ります
+     */
+    public synchronized int getTimeout() {
+        return this.timeout;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.lib.IFeliCaTransport#close()
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+    }
+    /**
+     * コマンドのIDmが示すシステムを取得します
+     */
+    protected SystemImage target(byte[] data) {
+        if ( data.length < 10 ) return null;
+        for ( SystemImage s : this.systems ) {
+            if ( equals(s.idm, data, 2) ) return s;
+        }
+        return null;
+    }
+    /**
+     * Polling
+     */
+    protected byte[] polling(byte[] data) {
+        if ( data.length < 6 ) return null;
+        for ( SystemImage s : this.systems ) {
+            if ( matchSystemCode(s.systemCode, data[2], data[3]) ) {
+                ByteArrayOutputStream out = begin(RESPONSE_POLLING, s);
+                out.write(this.pmm, 0, this.pmm.length);
+                if ( data[4] == 0x01 ) { // システムコードリクエスト
+                    out.write(s.systemCode >> 8);
+                    out.write(s.systemCode & 0xff);
+                }
+                return end(out);
+            }
+        }
+        return null;
+    }
+    /**
+     * Request System Code
+     */
+    protected byte[] requestSystemCode(SystemImage target) {
+        if ( target == null ) return null;
+        ByteArrayOutputStream out = begin(RESPONSE_REQUEST_SYSTEMCODE, target);
+        out.write(this.systems.size());
+        for ( SystemImage s : this.systems ) {
+            out.write(s.systemCode >> 8);
+            out.write(s.systemCode & 0xff);
+        }
+        return end(out);
+    }
+    /**
+     * Request Response
+     * 
+     * 認証を扱わないため、モードは常に0として応答します
+     */
+    protected byte[] requestResponse(SystemImage target) {
+        if ( target == null ) return null;
+        ByteArrayOutputStream out = begin(RESPONSE_REQUEST_RESPONSE, target);
+        out.write(0x00); // モード0
+        return end(out);
+    }
+    /**
+     * Request Service
+     * 
+     * 存在するノードの鍵バージョンは0000として応答します
+     */
+    protected byte[] requestService(SystemImage target, byte[] data) {
+        if ( target == null || data.length < 11 ) return null;
+        int n = data[10] & 0xff;
+        if ( n < 1 || n > 32 || data.length != 11 + n * 2 ) return null;
+        ByteArrayOutputStream out = begin(RESPONSE_REQUEST_SERVICE, target);
+        out.write(n);
+        for ( int i = 0; i < n; i++ ) {
+            int code = (data[11 + i * 2] & 0xff) | (data[12 + i * 2] & 0xff) << 8;
+            boolean found = code == 0x0000; // root area
+            for ( int[] node : target.nodes ) {
+                if ( node[0] == code ) found = true;
+            }
+            out.write(found ? 0x00 : 0xff);
+            out.write(found ? 0x00 : 0xff);
+        }
+        return end(out);
+    }
+    /**
+     * Search Service Code
+     */
+    protected byte[] searchServiceCode(SystemImage target, byte[] data) {
+        if ( target == null || data.length < 12 ) return null;
+        int index = (data[10] & 0xff) | (data[11] & 0xff) << 8;
+        ByteArrayOutputStream out = begin(RESPONSE_SEARCH_SERVICECODE, target);
+        // index 0 は root area (0000-FFFE)
+        int[] node = index == 0 ? new int[]{0x0000, 0xfffe}
+                   : index <= target.nodes.size() ? target.nodes.get(index - 1) : new int[]{0xffff};
+        for ( int code : node ) {
+            out.write(code & 0xff); // little endian
+            out.write(code >> 8);
+        }
+        return end(out);
+    }
+    /**
+     * Read Without Encryption
+     */
+    protected byte[] read(SystemImage target, byte[] data) {
+        if ( target == null ) return null;
+        ByteArrayOutputStream out = begin(RESPONSE_READ_WO_ENCRYPTION, target);
+        List<byte[]> result = new ArrayList<byte[]>();
+        int status = this.access(target, data, false, result);
+        if ( status != 0 ) {
+            out.write(0xff);
+            out.write(status);
+            return end(out);
+        }
+        out.write(0x00);
+        out.write(0x00);
+        out.write(result.size());
+        for ( byte[] b : result ) {
+            out.write(b, 0, b.length);
+        }
+        return end(out);
+    }
+    /**
+     * Write Without Encryption
+     */
+    protected byte[] write(SystemImage target, byte[] data) {
+        if ( target == null ) return null;
+        ByteArrayOutputStream out = begin(RESPONSE_WRITE_WO_ENCRYPTION, target);
+        int status = this.access(target, data, true, null);
+        out.write(status != 0 ? 0xff : 0x00);
+        out.write(status);
+        return end(out);
+    }
+    /**
+     * サービスコードリストとブロックリストを解釈してブロックを読み書きします
+     *
+     * @return int ステータスフラグ2が戻ります (正常時は0)
+     */
+    protected int access(SystemImage target, byte[] data, boolean write, List<byte[]> result) {
+        int p = 10;
+        if ( p >= data.length ) return STATUSFLAG2_ERROR_SERVICE_COUNT;
+        int serviceCount = data[p++] & 0xff;
+        if ( serviceCount < 1 || serviceCount > 16 || p + serviceCount * 2 >= data.length )
+            return STATUSFLAG2_ERROR_SERVICE_COUNT;
+        byte[][][] services = new byte[serviceCount][][];
+        for ( int i = 0; i < serviceCount; i++, p += 2 ) {
+            int code = (data[p] & 0xff) | (data[p + 1] & 0xff) << 8;
+            byte[][] b = target.blocks.get(code);
+            if ( b == null || (code & 0x01) == 0 || (write && (code & 0x02) != 0) )
+                return STATUSFLAG2_ERROR_SERVICE_CODE;
+            services[i] = b;
+        }
+        int blockCount = data[p++] & 0xff;
+        if ( blockCount < 1 || blockCount > (write ? this.maxWriteBlocks : this.maxReadBlocks) )
+            return STATUSFLAG2_ERROR_BLOCK_COUNT;
+        int[][] elements = new int[blockCount][];
+        for ( int i = 0; i < blockCount; i++ ) {
+            if ( p + 1 >= data.length ) return STATUSFLAG2_ERROR_BLOCK_COUNT;
+            int head = data[p] & 0xff;
+            int order = head & 0x0f;
+            int block;
+            if ( (head & 0x80) != 0 ) {
+                block = data[p + 1] & 0xff;
+                p += 2;
+            } else {
+                if ( p + 2 >= data.length ) return STATUSFLAG2_ERROR_BLOCK_COUNT;
+                block = (data[p + 1] & 0xff) | (data[p + 2] & 0xff) << 8;
+                p += 3;
+            }
+            if ( order >= serviceCount ) return STATUSFLAG2_ERROR_SERVICE_ORDER;
+            if ( block >= services[order].length ) return STATUSFLAG2_ERROR_BLOCK_NUMBER;
+            elements[i] = new int[]{order, block};
+        }
+        if ( write ) {
+            if ( data.length - p != blockCount * BLOCK_SIZE ) return STATUSFLAG2_ERROR_BLOCK_COUNT;
+            for ( int[] e : elements ) {
+                System.arraycopy(data, p, services[e[0]][e[1]], 0, BLOCK_SIZE);
+                p += BLOCK_SIZE;
+            }
+        } else {
+            for ( int[] e : elements ) {
+                result.add(services[e[0]][e[1]]);
+            }
+        }
+        return 0;
+    }
+    /**
+     * 応答フレームを開始します (データ長バイトは後で埋めます)
+     */
+    protected static ByteArrayOutputStream begin(byte responseCode, SystemImage s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        out.write(0);
+        out.write(responseCode);
+        out.write(s.idm, 0, s.idm.length);
+        return out;
+    }
+    /**
+     * 応答フレームを完成させます
+     */
+    protected static byte[] end(ByteArrayOutputStream out) {
+        byte[] frame = out.toByteArray();
+        frame[0] = (byte) frame.length;
+        return frame;
+    }
+    /**
+     * システムコードがポーリング条件に合致するかを検査します (0xffはワイルドカード)
+     */
+    protected static boolean matchSystemCode(int systemCode, byte hi, byte lo) {
+        return ( hi == (byte) 0xff || (byte) (systemCode >> 8) == hi )
+            && ( lo == (byte) 0xff || (byte) (systemCode & 0xff) == lo );
+    }
+    /**
+     * バイト列の一部がIDmと一致するかを検査します
+     */
+    protected static boolean equals(byte[] idm, byte[] data, int offset) {
+        for ( int i = 0; i < idm.length; i++ ) {
+            if ( idm[i] != data[offset + i] ) return false;
+        }
+        return true;
+    }
+}
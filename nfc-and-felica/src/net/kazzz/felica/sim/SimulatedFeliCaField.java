@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.sim;
+
+import static net.kazzz.felica.lib.FeliCaLib.COMMAND_POLLING;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.kazzz.felica.lib.AbstractFeliCaTransport;
+import net.kazzz.nfc.NfcException;
+
+/**
+ * 複数のカードがかざされたRFフィールドのシミュレータを提供します
+ *
+ * <pre>
+ * Pollingには全てのカードが乱数で選んだタイムスロットで応答し、衝突しなかった応答フレームを
+ * スロット順に連結して返します (全ての応答を返すリーダの動作です)。
+ * Polling以外のコマンドは、IDmが一致するカードだけが応答します。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class SimulatedFeliCaField extends AbstractFeliCaTransport {
+    protected final List<SimulatedFeliCaCard> cards = new ArrayList<SimulatedFeliCaCard>();
+    protected final Random random;
+    protected int timeout;
+    protected boolean closed;
+    /**
+     * コンストラクタ
+     */
+    public SimulatedFeliCaField() {
+        this(new Random());
+    }
+    /**
+     * コンストラクタ
+     *
+     * @param random タイムスロットの選択に使用する乱数をセット
+     */
+    public SimulatedFeliCaField(Random random) {
+        this.random = random;
+    }
+    /**
+     * フィールドにカードを置きます
+     * @param card カードをセット
+     */
+    public synchronized void add(SimulatedFeliCaCard card) {
+        this.cards.add(card);
+    }
+    /**
+     * フィールドからカードを取り除きます
+     * @param card カードをセット
+     */
+    public synchronized void remove(SimulatedFeliCaCard card) {
+        this.cards.remove(card);
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.lib.IFeliCaTransport#transceive(byte[])
+     */
+    @Override
+    public synchronized byte[] transceive(byte[] data) throws NfcException {
+        if ( this.closed )
+            throw new NfcException("transport is already closed");
+        if ( data != null && data.length >= 6 && data[1] == COMMAND_POLLING ) {
+            return this.polling(data);
+        }
+        for ( SimulatedFeliCaCard card : this.cards ) {
+            try {
+                return card.transceive(data);
+            } catch (NfcException e) {
+                // このカード宛てではない
+            }
+        }
+        throw new NfcException("no response (timeout)");
+    }
+    /**
+     * Polling
+     */
+    protected byte[] polling(byte[] data) throws NfcException {
+        int slots = (data[5] & 0x0f) + 1;
+        byte[][] responses = new byte[slots][];
+        boolean[] collided = new boolean[slots];
+        for ( SimulatedFeliCaCard card : this.cards ) {
+            byte[] r;
+            try {
+                r = card.transceive(data);
+            } catch (NfcException e) {
+                continue; // 対象のシステムが無い
+            }
+            int slot = this.random.nextInt(slots);
+            if ( responses[slot] != null ) {
+                collided[slot] = true;
+            }
+            responses[slot] = r;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for ( int i = 0; i < slots; i++ ) {
+            if ( responses[i] != null && !collided[i] ) {
+                out.write(responses[i], 0, responses[i].length);
+            }
+        }
+        if ( out.size() == 0 )
+            throw new NfcException("no response (timeout)");
+        return out.toByteArray();
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.lib.IFeliCaTransport#setTimeout(int)
+     */
+    @Override
+    public synchronized void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+    /**
+     * 最後に設定された応答タイムアウトを取得します
+     * @return int タイムアウト(ミリ秒)が戻ります
+     */
+    public synchronized int getTimeout() {
+        return this.timeout;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.lib.IFeliCaTransport#close()
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import net.kazzz.felica.command.ReadResponseView;
+
+/**
+ * Suica/PASMOの利用履歴(SERVICE_SUICA_HISTORY 0x090f)のレコードを順に解析するカーソルを提供します
+ *
+ * <pre>
+ * レコード(16バイト)は応答フレームやブロックデータの配列上で直接解析し、レコード毎のオブジェクトは
+ * 生成しません。カーソルはwrap()で使い回せます。
+ *
+ *  SuicaHistoryCursor cursor = new SuicaHistoryCursor();
+ *  cursor.wrap(tag.readWithoutEncryption(new ServiceCode(SERVICE_SUICA_HISTORY), 0, 20));
+ *  while ( cursor.next() ) {
+ *      if ( cursor.isEmpty() ) continue;
+ *      int balance = cursor.getBalance();
+ *      ...
+ *  }
+ *
+ * レコード
+ *   +0  機器種別
+ *   +1  利用種別
+ *   +2  支払種別
+ *   +3  入出場種別
+ *   +4  日付 (年7ビット + 月4ビット + 日5ビット, 年は2000年からの経過年)
+ *   +6  入場駅 (線区コード + 駅順コード)
+ *   +8  出場駅 (線区コード + 駅順コード)
+ *   +10 残額 (リトルエンディアン)
+ *   +12 連番 (3バイト, ビッグエンディアン)
+ *   +15 地域コード
+ * 物販等では+6～+9に駅以外の情報(時刻や端末番号)が入ります。
+ * </pre>
+ *
+ * @since Android API Level 10
+ *
+ */
+
+public class SuicaHistoryCursor {
+    public static final int RECORD_SIZE = 16;
+
+    protected byte[] buffer;
+    protected int offset;   // 先頭レコードの位置
+    protected int count;    // レコード数
+    protected int index = -1;
+    protected int position; // 現在のレコードの位置
+    /**
+     * コンストラクタ
+     */
+    public SuicaHistoryCursor() {
+    }
+    /**
+     * ブロックデータを連結した配列を参照します
+     *
+     * @param blocks ブロックデータ (16バイトの倍数)をセット
+     * @return SuicaHistoryCursor このカーソルが戻ります
+     */
+    public SuicaHistoryCursor wrap(byte[] blocks) {
+        return this.wrap(blocks, 0, blocks.length / RECORD_SIZE);
+    }
+    /**
+     * 配列上のレコードを参照します
+     *
+     * @param buffer レコードを保持した配列をセット
+     * @param offset 先頭レコードの位置をセット
+     * @param count レコード数をセット
+     * @return SuicaHistoryCursor このカーソルが戻ります
+     */
+    public SuicaHistoryCursor wrap(byte[] buffer, int offset, int count) {
+        if ( offset < 0 || count < 0 || offset + count * RECORD_SIZE > buffer.length ) {
+            throw new IndexOutOfBoundsException("offset : " + offset + " count : " + count);
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        this.count = count;
+        this.index = -1;
+        return this;
+    }
+    /**
+     * Read Without Encryptionの応答フレーム中のレコードを参照します
+     *
+     * エラー応答(ブロックデータを含まない)の場合はレコード数0のカーソルとなります
+     *
+     * @param view 応答フレームを参照しているビューをセット
+     * @return SuicaHistoryCursor このカーソルが戻ります
+     */
+    public SuicaHistoryCursor wrap(ReadResponseView view) {
+        int count = view.getBlockCount();
+        if ( count == 0 ) return this.wrap(view.array(), 0, 0);
+        return this.wrap(view.array(), view.getBlockOffset(0), count);
+    }
+    /**
+     * 次のレコードへ移動します
+     * @return boolean 次のレコードがある場合trueが戻ります
+     */
+    public boolean next() {
+        if ( this.index + 1 >= this.count ) {
+            this.index = this.count;
+            return false;
+        }
+        this.moveTo(this.index + 1);
+        return true;
+    }
+    /**
+     * 指定のレコードへ移動します
+     * @param index レコードの番号 (0オリジン, 0が最新)をセット
+     */
+    public void moveTo(int index) {
+        if ( index < 0 || index >= this.count ) {
+            throw new IndexOutOfBoundsException("index : " + index);
+        }
+        this.index = index;
+        this.position = this.offset + index * RECORD_SIZE;
+    }
+    /**
+     * レコード数を取得します
+     * @return int レコード数が戻ります
+     */
+    public int getCount() {
+        return this.count;
+    }
+    /**
+     * 現在のレコードの番号を取得します
+     * @return int レコードの番号が戻ります
+     */
+    public int getIndex() {
+        return this.index;
+    }
+    /**
+     * 現在のレコードが未使用かを検査します
+     * @return boolean 未使用(機器種別と連番が0)の場合trueが戻ります
+     */
+    public boolean isEmpty() {
+        return this.u8(0) == 0 && this.getSequenceNumber() == 0;
+    }
+    /**
+     * 機器種別を取得します
+     * @return int 機器種別が戻ります
+     */
+    public int getTerminalType() {
+        return this.u8(0);
+    }
+    /**
+     * 利用種別を取得します
+     * @return int 利用種別 (最上位ビットを除いた値)が戻ります
+     */
+    public int getProcessType() {
+        return this.u8(1) & 0x7f;
+    }
+    /**
+     * 支払種別を取得します
+     * @return int 支払種別が戻ります
+     */
+    public int getPaymentType() {
+        return this.u8(2);
+    }
+    /**
+     * 入出場種別を取得します
+     * @return int 入出場種別が戻ります
+     */
+    public int getGateType() {
+        return this.u8(3);
+    }
+    /**
+     * 年を取得します
+     * @return int 西暦年が戻ります
+     */
+    public int getYear() {
+        return 2000 + (this.u8(4) >> 1);
+    }
+    /**
+     * 月を取得します
+     * @return int 月 (1～12)が戻ります
+     */
+    public int getMonth() {
+        return (this.u8(4) & 0x01) << 3 | this.u8(5) >> 5;
+    }
+    /**
+     * 日を取得します
+     * @return int 日 (1～31)が戻ります
+     */
+    public int getDay() {
+        return this.u8(5) & 0x1f;
+    }
+    /**
+     * 日付を数値として取得します
+     * @return int 日付 (例: 20110405)が戻ります
+     */
+    public int getDate() {
+        return this.getYear() * 10000 + this.getMonth() * 100 + this.getDay();
+    }
+    /**
+     * 入場駅コードを取得します
+     * @return int 線区コード &lt;&lt; 8 | 駅順コード が戻ります
+     */
+    public int getEntryStation() {
+        return this.u8(6) << 8 | this.u8(7);
+    }
+    /**
+     * 出場駅コードを取得します
+     * @return int 線区コード &lt;&lt; 8 | 駅順コード が戻ります
+     */
+    public int getExitStation() {
+        return this.u8(8) << 8 | this.u8(9);
+    }
+    /**
+     * 残額を取得します
+     * @return int 残額 (円)が戻ります
+     */
+    public int getBalance() {
+        return this.u8(10) | this.u8(11) << 8;
+    }
+    /**
+     * 連番を取得します
+     * @return int 連番が戻ります
+     */
+    public int getSequenceNumber() {
+        return this.u8(12) << 16 | this.u8(13) << 8 | this.u8(14);
+    }
+    /**
+     * 地域コードを取得します
+     * @return int 地域コードが戻ります
+     */
+    public int getRegion() {
+        return this.u8(15);
+    }
+    /**
+     * 現在のレコードを別の配列へ複写します
+     * @param dest 複写先の配列をセット
+     * @param destPos 複写先の位置をセット
+     */
+    public void copyRecord(byte[] dest, int destPos) {
+        this.checkPosition();
+        System.arraycopy(this.buffer, this.position, dest, destPos, RECORD_SIZE);
+    }
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        if ( this.index < 0 || this.index >= this.count ) {
+            return "SuicaHistoryCursor (no record)";
+        }
+        return String.format("#%d %04d/%02d/%02d 機器種別:%02x 利用種別:%02x 入場:%04x 出場:%04x 残額:%d 連番:%d"
+                , this.index, this.getYear(), this.getMonth(), this.getDay()
+                , this.getTerminalType(), this.getProcessType()
+                , this.getEntryStation(), this.getExitStation()
+                , this.getBalance(), this.getSequenceNumber());
+    }
+    private int u8(int field) {
+        this.checkPosition();
+        return this.buffer[this.position + field] & 0xff;
+    }
+    private void checkPosition() {
+        if ( this.index < 0 || this.index >= this.count ) {
+            throw new IllegalStateException("cursor is not on a record");
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.util;
+
+import java.util.Arrays;
+
+/**
+ * キーと値が共にlongのハッシュマップを提供します
+ *
+ * <pre>
+ * オープンアドレス法(線形探索)で配列に直接格納するため、エントリ毎のオブジェクトやボクシングが発生しません。
+ * 削除はサポートしません。スレッドセーフではありません。
+ * </pre>
+ *
+ * @since Android API Level 4
+ *
+ */
+public final class LongLongHashMap {
+    private static final long EMPTY = 0L; // 空きスロットを示すキー (キー0は別に保持します)
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    /**
+     * コンストラクタ
+     */
+    public LongLongHashMap() {
+        this(16);
+    }
+    /**
+     * コンストラクタ
+     *
+     * @param expectedSize 予想されるエントリ数をセット
+     */
+    public LongLongHashMap(int expectedSize) {
+        int capacity = 16;
+        while ( capacity * LOAD_FACTOR < expectedSize ) {
+            capacity <<= 1;
+        }
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+    }
+    /**
+     * 値を取得します
+     *
+     * @param key キーをセット
+     * @param defaultValue キーが無い場合の値をセット
+     * @return long 値が戻ります (キーが無い場合はdefaultValue)
+     */
+    public long get(long key, long defaultValue) {
+        if ( key == EMPTY ) {
+            return this.hasZeroKey ? this.zeroValue : defaultValue;
+        }
+        int mask = this.keys.length - 1;
+        for ( int i = hash(key) & mask; ; i = (i + 1) & mask ) {
+            long k = this.keys[i];
+            if ( k == key ) return this.values[i];
+            if ( k == EMPTY ) return defaultValue;
+        }
+    }
+    /**
+     * キーが含まれているかを検査します
+     *
+     * @param key キーをセット
+     * @return boolean 含まれている場合trueが戻ります
+     */
+    public boolean containsKey(long key) {
+        if ( key == EMPTY ) return this.hasZeroKey;
+        int mask = this.keys.length - 1;
+        for ( int i = hash(key) & mask; ; i = (i + 1) & mask ) {
+            long k = this.keys[i];
+            if ( k == key ) return true;
+            if ( k == EMPTY ) return false;
+        }
+    }
+    /**
+     * 値を設定します
+     *
+     * @param key キーをセット
+     * @param value 値をセット
+     */
+    public void put(long key, long value) {
+        if ( key == EMPTY ) {
+            if ( !this.hasZeroKey ) this.size++;
+            this.hasZeroKey = true;
+            this.zeroValue = value;
+            return;
+        }
+        int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+        for ( ; this.keys[i] != EMPTY; i = (i + 1) & mask ) {
+            if ( this.keys[i] == key ) {
+                this.values[i] = value;
+                return;
+            }
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        if ( ++this.size > this.keys.length * LOAD_FACTOR ) {
+            this.rehash(this.keys.length << 1);
+        }
+    }
+    /**
+     * エントリ数を取得します
+     * @return int エントリ数が戻ります
+     */
+    public int size() {
+        return this.size;
+    }
+    /**
+     * 全てのキーを取得します
+     * @return long[] キーの配列 (順不同)が戻ります
+     */
+    public long[] keys() {
+        long[] result = new long[this.size];
+        int n = 0;
+        if ( this.hasZeroKey ) result[n++] = EMPTY;
+        for ( long k : this.keys ) {
+            if ( k != EMPTY ) result[n++] = k;
+        }
+        return result;
+    }
+    /**
+     * 全てのエントリを削除します
+     */
+    public void clear() {
+        Arrays.fill(this.keys, EMPTY);
+        this.size = 0;
+        this.hasZeroKey = false;
+    }
+    /**
+     * 配列を拡張して再配置します
+     */
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        long[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        int mask = capacity - 1;
+        for ( int j = 0; j < oldKeys.length; j++ ) {
+            long k = oldKeys[j];
+            if ( k == EMPTY ) continue;
+            int i = hash(k) & mask;
+            while ( this.keys[i] != EMPTY ) {
+                i = (i + 1) & mask;
+            }
+            this.keys[i] = k;
+            this.values[i] = oldValues[j];
+        }
+    }
+    /**
+     * キーを拡散します (IDmのように上位が揃った値でも偏らないようにします)
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
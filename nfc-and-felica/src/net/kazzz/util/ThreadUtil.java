@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.util;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * スレッドに関するユーティリティクラスです
+ *
+ * @since Android API Level 4
+ *
+ */
+public final class ThreadUtil {
+    private ThreadUtil() {
+    }
+    /**
+     * デーモンスレッドを生成するThreadFactoryを取得します
+     *
+     * アプリケーションの終了を妨げないよう、バックグラウンドの共有スレッドはデーモンにします
+     * @param name スレッド名をセット
+     * @return ThreadFactory ThreadFactoryが戻ります
+     */
+    public static final ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
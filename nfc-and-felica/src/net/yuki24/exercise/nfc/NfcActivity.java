@@ -1,7 +1,8 @@
 package net.yuki24.exercise.nfc;
 
+import net.kazzz.felica.AsyncFeliCaTag;
 import net.kazzz.felica.FeliCaException;
-import net.kazzz.felica.lib.FeliCaLib;
+import net.kazzz.felica.FeliCaTag;
 import net.kazzz.felica.lib.FeliCaLib.IDm;
 import com.felicanetworks.mfc.PushIntentSegment;
 import android.app.Activity;
@@ -12,7 +13,11 @@ import android.nfc.Tag;
 import android.os.Bundle;
 
 public class NfcActivity extends Activity {
-	@Override 
+	private static final long PUSH_TIMEOUT = 1000;
+
+	private AsyncFeliCaTag felica;
+
+	@Override
     public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.main);
@@ -26,11 +31,19 @@ public class NfcActivity extends Activity {
 				Intent i = new Intent(Intent.ACTION_VIEW, Uri.parse("market://details?id=com.main.typograffit"));
 				PushIntentSegment segment = new PushIntentSegment(i);
 				PushCommand pushCommand = new PushCommand(new IDm(idm), segment);
-				FeliCaLib.execute(tag, pushCommand);
+				// keep the RF round-trip off the UI thread
+				felica = new AsyncFeliCaTag(new FeliCaTag(tag));
+				felica.execute(pushCommand, null, PUSH_TIMEOUT);
 			} catch (FeliCaException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	protected void onDestroy() {
+		if(felica != null) felica.shutdown();
+		super.onDestroy();
+	}
+}
@@ -5,7 +5,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import net.kazzz.felica.FeliCaException;
-import net.kazzz.felica.lib.FeliCaLib;
+import net.kazzz.felica.lib.FeliCaCommandRegistry;
 import net.kazzz.felica.lib.FeliCaLib.CommandPacket;
 import net.kazzz.felica.lib.FeliCaLib.IDm;
 
@@ -16,9 +16,11 @@ public class PushCommand extends CommandPacket {
     private static final Charset URL_CHARSET = Charset.forName("iso8859-1");
     private static final Charset ICC_CHARSET = Charset.forName("iso8859-1");
 	public static final byte PUSH = (byte) 0xb0;
+	public static final byte PUSH_RESPONSE = (byte) 0xb1;
 
 	static {
-		FeliCaLib.commandMap.put(PUSH, "Push");
+		// a push launches something on the handset, so it must never be resent blindly
+		FeliCaCommandRegistry.register(PUSH, "Push", PUSH_RESPONSE, false, FeliCaCommandRegistry.MAX_FRAME_SIZE);
 	}
 
 	public PushCommand(IDm idm, PushSegment segment) throws FeliCaException {